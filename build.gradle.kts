@@ -24,7 +24,23 @@ dependencies {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("soak")
+    }
+}
+
+// ./gradlew soakTest -Dsoak.durationSeconds=3600 runs the client and server under steady load and fails on resource growth
+tasks.register<Test>("soakTest") {
+    description = "Runs the soak tagged tests, which watch file descriptors, threads and heap over a long run."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("soak")
+    }
+    systemProperties(System.getProperties().stringPropertyNames().filter { it.startsWith("soak.") }.associateWith { System.getProperty(it) })
+    testLogging.showStandardStreams = true
+    outputs.upToDateWhen { false }
 }
 
 
@@ -0,0 +1,352 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.CorrelationId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** BulkImport uploads every file under a directory tree once, for backfilling archives that were never in a watch directory.
+ * The tree is walked by a fork join pool, one task per directory, and each file goes through the same filter and
+ * upload path as a watched file, at most maxInFlight uploads at a time. Files are left in place.
+ * Files are read and sent on a separate pool of UPLOAD_THREADS_PER_SERVER threads per server, so the walk never waits
+ * on the network. An http upload holds its thread until the server answers, a framed one only until it is written,
+ * so maxInFlight is the window of uploads not yet answered and the pool only needs to keep the servers busy.
+ * A walker waiting for a slot in that window is a {@link ForkJoinPool.ManagedBlocker}, so the walk doesn't lose the thread.
+ * A file is sent under its path relative to the root with the separators replaced by underscores, so files with the
+ * same name in different directories don't overwrite each other on the server, see {@link #uploadName(Path)}.
+ * Every uploaded file is appended to a checkpoint file, so an interrupted import run again skips what was already sent.
+ * */
+class BulkImport {
+    private static final Logger log = LoggerFactory.getLogger(BulkImport.class);
+    static final String CHECKPOINT_FILE_NAME = "import.checkpoint";
+    static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    static final int UPLOAD_THREADS_PER_SERVER = 4;
+
+    private final Uploader uploader;
+    private final WatchConfig tenant;
+    private final Path root;
+    private final Path checkpointFile;
+    private final int threads;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    /** The upload names claimed so far, a second file that maps to one of them fails instead of overwriting it. */
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private Checkpoint checkpoint;
+    private ExecutorService uploads;
+
+    BulkImport(Uploader uploader, WatchConfig tenant, Path root, Path checkpointFile, int threads, int maxInFlight) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("importThreads must be at least 1, was " + threads);
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("importMaxInFlight must be at least 1, was " + maxInFlight);
+        }
+        this.uploader = uploader;
+        this.tenant = tenant;
+        this.root = root.toAbsolutePath().normalize();
+        this.checkpointFile = checkpointFile.toAbsolutePath().normalize();
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /** Imports the whole tree and waits for the last upload to finish. */
+    Summary run() throws IOException {
+        long start = System.nanoTime();
+        int uploadThreadCount = Math.min(maxInFlight, UPLOAD_THREADS_PER_SERVER * tenant.servers.getNodes().size());
+        log.info("Importing " + root + " for tenant " + tenant.name + " with " + threads + " threads, " + uploadThreadCount
+                + " upload threads and at most " + maxInFlight + " uploads in flight");
+        tenant.servers.start();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        AtomicInteger uploadThreads = new AtomicInteger();
+        ThreadPoolExecutor uploadPool = new ThreadPoolExecutor(uploadThreadCount, uploadThreadCount, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "BulkImport-upload-" + uploadThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        uploadPool.allowCoreThreadTimeOut(true);
+        uploads = uploadPool;
+        try (Checkpoint opened = Checkpoint.open(checkpointFile, root)) {
+            checkpoint = opened;
+            pool.invoke(new DirectoryTask(root));
+            // every permit back means every upload has completed one way or the other
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            pool.shutdown();
+            uploadPool.shutdown();
+        }
+        Summary summary = new Summary(found.get(), uploaded.get(), skipped.get(), failed.get(), bytesRead.get(), Duration.ofNanos(System.nanoTime() - start));
+        log.info("Import of " + root + " finished: " + summary);
+        return summary;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    // symbolic links aren't followed, a link back up the tree would never finish
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        DirectoryTask subdir = new DirectoryTask(entry);
+                        subdir.fork();
+                        subdirs.add(subdir);
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS) && !entry.equals(checkpointFile)) {
+                        importFile(entry);
+                    }
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                log.error("Could not list " + dir + ", skipping it: " + e.getLocalizedMessage());
+            }
+            for (DirectoryTask subdir : subdirs) {
+                subdir.join();
+            }
+        }
+    }
+
+    private void importFile(Path file) {
+        found.incrementAndGet();
+        Path relative = root.relativize(file);
+        String relativePath = relative.toString();
+        String name = uploadName(relative);
+        if (!names.add(name)) {
+            failed.incrementAndGet();
+            log.error("Could not import " + file + ", another file in the import is also sent as " + name);
+            return;
+        }
+        if (checkpoint.isDone(relativePath)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        // the walk only waits for a permit, reading and sending happen on the upload pool
+        try {
+            ForkJoinPool.managedBlock(new PermitBlocker());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+            log.error("Interrupted before importing " + file);
+            return;
+        }
+        try {
+            uploads.execute(() -> upload(file, relativePath, name));
+        } catch (RuntimeException e) {
+            inFlight.release();
+            failed.incrementAndGet();
+            log.error("Could not import " + file + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /** Takes an in flight permit, letting the fork join pool add a walker while this one waits. */
+    private class PermitBlocker implements ForkJoinPool.ManagedBlocker {
+        private boolean acquired;
+
+        @Override
+        public boolean block() {
+            if (!acquired) {
+                inFlight.acquireUninterruptibly();
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (!acquired) {
+                acquired = inFlight.tryAcquire();
+            }
+            return acquired;
+        }
+    }
+
+    /** Reads and sends one file, holding its in flight permit until the upload has completed. */
+    private void upload(Path file, String relativePath, String name) {
+        String correlationId = CorrelationId.next();
+        CompletableFuture<Void> sent;
+        try {
+            Map<String, String> filteredMap = uploader.readFilteredMap(tenant, file.toFile(), correlationId);
+            filteredMap.put("sourceFile", name);
+            bytesRead.addAndGet(Files.size(file));
+            sent = uploader.sendMapToServer(tenant.servers, filteredMap, correlationId, uploads);
+        } catch (IOException | RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((ignored, failure) -> {
+            try {
+                if (failure == null) {
+                    uploaded.incrementAndGet();
+                    checkpoint.record(relativePath);
+                } else {
+                    failed.incrementAndGet();
+                    log.error("Could not import " + file + " correlationId=" + correlationId + ", it will be retried when the import is run again: " + failure.getLocalizedMessage());
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /** The sourceFile a file is sent as, its path relative to the import root joined with underscores, such as 2019_01_app.properties. */
+    static String uploadName(Path relativePath) {
+        StringBuilder name = new StringBuilder();
+        for (Path element : relativePath) {
+            if (name.length() > 0) {
+                name.append('_');
+            }
+            name.append(element);
+        }
+        return name.toString();
+    }
+
+    /** The relative paths of the files already uploaded from one import root, kept in an append only file.
+     * The first line is the root, a checkpoint left by an import of a different root is started over.
+     * */
+    static class Checkpoint implements Closeable {
+        private static final int FLUSH_EVERY = 1000;
+        private static final long FLUSH_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+
+        private final Set<String> done;
+        private final BufferedWriter writer;
+        private int unflushed;
+        private long lastFlush = System.nanoTime();
+
+        private Checkpoint(Set<String> done, BufferedWriter writer) {
+            this.done = done;
+            this.writer = writer;
+        }
+
+        static Checkpoint open(Path file, Path root) throws IOException {
+            String rootLine = root.toAbsolutePath().normalize().toString();
+            Set<String> done = new HashSet<>();
+            if (Files.exists(file)) {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(rootLine)) {
+                    done.addAll(lines.subList(1, lines.size()));
+                    log.info("Resuming import of " + root + ", " + done.size() + " files were already uploaded");
+                    return new Checkpoint(done, Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND));
+                }
+                log.warn("Checkpoint " + file + " belongs to another import, starting over");
+            }
+            BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write(rootLine);
+            writer.newLine();
+            writer.flush();
+            return new Checkpoint(done, writer);
+        }
+
+        boolean isDone(String relativePath) {
+            return done.contains(relativePath);
+        }
+
+        /** Records an uploaded file, flushed in batches so the checkpoint doesn't cost a write per file. */
+        synchronized void record(String relativePath) {
+            try {
+                writer.write(relativePath);
+                writer.newLine();
+                long now = System.nanoTime();
+                if (++unflushed >= FLUSH_EVERY || now - lastFlush >= FLUSH_INTERVAL_NANOS) {
+                    writer.flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+            } catch (IOException e) {
+                // the file was uploaded, a resumed import will just send it again
+                log.warn("Could not record " + relativePath + " in the checkpoint: " + e.getLocalizedMessage());
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /** What an import did, printed when it exits. */
+    static class Summary {
+        private final long found;
+        private final long uploaded;
+        private final long skipped;
+        private final long failed;
+        private final long bytesRead;
+        private final Duration elapsed;
+
+        Summary(long found, long uploaded, long skipped, long failed, long bytesRead, Duration elapsed) {
+            this.found = found;
+            this.uploaded = uploaded;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.bytesRead = bytesRead;
+            this.elapsed = elapsed;
+        }
+
+        long getFound() {
+            return found;
+        }
+
+        long getUploaded() {
+            return uploaded;
+        }
+
+        long getSkipped() {
+            return skipped;
+        }
+
+        long getFailed() {
+            return failed;
+        }
+
+        double getFilesPerSecond() {
+            double seconds = elapsed.toNanos() / 1e9;
+            return seconds == 0 ? uploaded : uploaded / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return "found=" + found + " uploaded=" + uploaded + " skipped=" + skipped + " failed=" + failed
+                    + " bytes=" + bytesRead + " elapsedMillis=" + elapsed.toMillis()
+                    + " filesPerSecond=" + String.format("%.1f", getFilesPerSecond());
+        }
+    }
+}
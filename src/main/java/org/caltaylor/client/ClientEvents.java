@@ -0,0 +1,108 @@
+package org.caltaylor.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** ClientEvents are the flight recorder events DirWatcher emits for each stage a file goes through,
+ * all carrying the file's correlation id so they line up with the server's events for the same file.
+ * They are off unless a recording enables them, e.g. -XX:StartFlightRecording with a settings file naming org.caltaylor.*,
+ * and fields are only filled in once shouldCommit says the event will be kept, so a disabled event costs next to nothing.
+ * */
+final class ClientEvents {
+    private static final String CATEGORY = "Scanner";
+
+    private ClientEvents() {
+    }
+
+    /** Loads every event class, which starts the flight recorder's own classes on first use and takes a few hundred
+     * milliseconds, so it is done once at startup instead of holding up the first file.
+     * */
+    static void load() {
+        new FileDetected().shouldCommit();
+        new FileDequeued().shouldCommit();
+        new FileRead().shouldCommit();
+        new Upload().shouldCommit();
+    }
+
+    @Name("org.caltaylor.FileDetected")
+    @Label("File Detected")
+    @Description("A new file was seen in a watch directory and queued for a worker")
+    @Category({CATEGORY, "Client"})
+    @StackTrace(false)
+    static class FileDetected extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Tenant")
+        String tenant;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Delivery Delay")
+        @Description("Time from the file's last modification to the watch service reporting it")
+        @Timespan(Timespan.MILLISECONDS)
+        long deliveryDelay;
+    }
+
+    @Name("org.caltaylor.FileDequeued")
+    @Label("File Dequeued")
+    @Description("A worker took a detected file from the tenant scheduler")
+    @Category({CATEGORY, "Client"})
+    @StackTrace(false)
+    static class FileDequeued extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Tenant")
+        String tenant;
+        @Label("Queued")
+        @Timespan(Timespan.NANOSECONDS)
+        long queued;
+    }
+
+    @Name("org.caltaylor.FileRead")
+    @Label("File Read")
+    @Description("A file was read and filtered down to its tenant's keys")
+    @Category({CATEGORY, "Client"})
+    @StackTrace(false)
+    static class FileRead extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Key Count")
+        int keyCount;
+    }
+
+    @Name("org.caltaylor.Upload")
+    @Label("Upload")
+    @Description("One attempt to send a file's keys to one server, until it answered or acked")
+    @Category({CATEGORY, "Client"})
+    @StackTrace(false)
+    static class Upload extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Server")
+        String server;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Key Count")
+        int keyCount;
+        @Label("Outcome")
+        String outcome;
+    }
+}
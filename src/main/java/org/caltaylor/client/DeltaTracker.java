@@ -0,0 +1,162 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.DocumentDelta;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/** DeltaTracker remembers what was last sent of each sourceFile to each server, as one hash per key,
+ * so the next upload of the same file to the same server can be just the keys that changed, see {@link DocumentDelta}.
+ * It holds the maxFiles most recently sent file and server pairs and forgets the least recently sent ones, which are then sent whole.
+ * */
+class DeltaTracker {
+    static final int DEFAULT_MAX_FILES = 10_000;
+
+    /** A file on one server. */
+    private static class Key {
+        final String serverUrl;
+        final String sourceFile;
+
+        Key(String serverUrl, String sourceFile) {
+            this.serverUrl = serverUrl;
+            this.sourceFile = sourceFile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).serverUrl.equals(serverUrl) && Objects.equals(((Key) o).sourceFile, sourceFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * serverUrl.hashCode() + Objects.hashCode(sourceFile);
+        }
+    }
+
+    /** What one server was last sent for a file. */
+    private static class Sent {
+        final Map<String, Long> hashes;
+        final long version;
+
+        Sent(Map<String, Long> hashes, long version) {
+            this.hashes = hashes;
+            this.version = version;
+        }
+    }
+
+    /** A delta upload, the changes to make baseVersion into version. */
+    static class Patch {
+        final long baseVersion;
+        final long version;
+        final Map<String, String> changed;
+        final List<String> removed;
+
+        Patch(long baseVersion, long version, Map<String, String> changed, List<String> removed) {
+            this.baseVersion = baseVersion;
+            this.version = version;
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        /** The upload body, the sourceFile with the changed and removed keys. */
+        Map<String, Object> toBody(String sourceFile) {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put(DocumentDelta.SOURCE_FILE_KEY, sourceFile);
+            body.put(DocumentDelta.CHANGED_KEY, changed);
+            body.put(DocumentDelta.REMOVED_KEY, removed);
+            return body;
+        }
+    }
+
+    private int maxFiles;
+    private final LinkedHashMap<Key, Sent> sent = new LinkedHashMap<>(16, 0.75f, true);
+
+    DeltaTracker(int maxFiles) {
+        setMaxFiles(maxFiles);
+    }
+
+    static void validate(int maxFiles) {
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("deltaSyncMaxFiles must be at least 1, was " + maxFiles);
+        }
+    }
+
+    synchronized void setMaxFiles(int maxFiles) {
+        validate(maxFiles);
+        this.maxFiles = maxFiles;
+        trim();
+    }
+
+    /** The changes since document's sourceFile was last sent to serverUrl, null if it wasn't or isn't remembered any more. */
+    Patch diff(String serverUrl, Map<String, String> document) {
+        Sent previous;
+        synchronized (this) {
+            previous = sent.get(new Key(serverUrl, document.get(DocumentDelta.SOURCE_FILE_KEY)));
+        }
+        if (previous == null) {
+            return null;
+        }
+        Map<String, String> changed = new LinkedHashMap<>();
+        int kept = 0;
+        for (Map.Entry<String, String> entry : document.entrySet()) {
+            if (entry.getKey().equals(DocumentDelta.SOURCE_FILE_KEY)) {
+                continue;
+            }
+            long hash = DocumentDelta.entryHash(entry.getKey(), entry.getValue());
+            Long before = previous.hashes.get(entry.getKey());
+            if (before == null || before != hash) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+            if (before != null) {
+                kept++;
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        if (kept < previous.hashes.size()) {
+            for (String key : previous.hashes.keySet()) {
+                if (!document.containsKey(key)) {
+                    removed.add(key);
+                }
+            }
+        }
+        return new Patch(previous.version, DocumentDelta.version(document), changed, removed);
+    }
+
+    /** Records that serverUrl now holds document. */
+    void sent(String serverUrl, Map<String, String> document) {
+        Map<String, Long> hashes = new HashMap<>();
+        for (Map.Entry<String, String> entry : document.entrySet()) {
+            if (!entry.getKey().equals(DocumentDelta.SOURCE_FILE_KEY)) {
+                hashes.put(entry.getKey(), DocumentDelta.entryHash(entry.getKey(), entry.getValue()));
+            }
+        }
+        // the same version the server computes, the patch's base has to match it
+        Sent now = new Sent(hashes, DocumentDelta.version(document));
+        synchronized (this) {
+            sent.put(new Key(serverUrl, document.get(DocumentDelta.SOURCE_FILE_KEY)), now);
+            trim();
+        }
+    }
+
+    /** Forgets sourceFile on serverUrl, when what that server holds for it is no longer known. What other servers hold is kept. */
+    synchronized void forget(String serverUrl, String sourceFile) {
+        sent.remove(new Key(serverUrl, sourceFile));
+    }
+
+    synchronized int size() {
+        return sent.size();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Key, Sent>> eldest = sent.entrySet().iterator();
+        while (sent.size() > maxFiles && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+}
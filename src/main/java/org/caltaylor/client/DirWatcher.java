@@ -1,38 +1,60 @@
 package org.caltaylor.client;
 
+import org.caltaylor.common.ConfigWatcher;
+import org.caltaylor.common.CorrelationId;
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.DocumentDelta;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.JsonProcessingException;
-
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-
+/** DirWatcher watches one or more directories, called tenants, for new property files.
+ * Every new file is read, filtered down to the keys matching its tenant's filter,
+ * sent to one of the tenant's servers and deleted.
+ * All tenants share one pool of worker threads, the TenantScheduler decides whose file goes next
+ * so a busy tenant can't starve the others.
+ * Servers given as http urls get one POST per file, servers given as tcp://host:port urls share one
+ * long lived {@link FramedConnection} per server, where files are sent without waiting for each other
+ * and deleted as their acks come back. With dictionaryEncoding=true framed connections send each key's text once
+ * and a small id after that, see {@link DictionaryEncoding}. With deltaSync=true a file sent to an http server before
+ * is sent again as just the keys that changed, see {@link DocumentDelta}. Reading and sending are done by an {@link Uploader}.
+ * Every file gets a {@link CorrelationId} when it is detected, sent to http servers in a header,
+ * and each stage it goes through is recorded as one of the {@link ClientEvents} when flight recording is on.
+ * */
 public class DirWatcher implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(DirWatcher.class);
     private static final String configFileName = "arcticwolfscannerclient.properties";
-    File dirToWatch;
-    Pattern keyPattern;
-    String scannerServerURL;
+    private static final int defaultWorkerThreads = 4;
+    private static final String importOption = "--import";
+    private static final String importUsage = "Usage: DirWatcher --import <dirToImport> <configDir> [tenant]";
+    /** Tenant configurations by name, swapped as a whole when the config file changes, read once per file. */
+    volatile Map<String, WatchConfig> tenants;
+    /** Server rings in use keyed by their settings, tenants with the same servers share one. */
+    private Map<String, ServerRing> rings = new LinkedHashMap<>();
+    private final TenantScheduler scheduler = new TenantScheduler();
+    private final ThreadPoolExecutor workers;
+    private WatchService service;
+    private final Map<WatchKey, String> watchKeys = new ConcurrentHashMap<>();
+    private final Uploader uploader;
 
     public static void main(String[] args) {
         //do all error checking here for config file path
@@ -40,15 +62,64 @@ public class DirWatcher implements Runnable {
         if (args == null) {
             throw new NullPointerException(errMsg);
         }
+        if (args.length > 0 && importOption.equals(args[0])) {
+            BulkImport.Summary summary = importTree(args);
+            System.out.println(summary);
+            System.exit(summary.getFailed() == 0 ? 0 : 1);
+            return;
+        }
         String configFilePath = args[0];
         if (configFilePath == null) {
             throw new NullPointerException(errMsg);
         }
         log.debug("initializing DirWatcher with args: " + configFilePath);
 
-        DirWatcher dirWatcher = new DirWatcher(getConfigFileProperties(configFilePath, errMsg));
+        Properties props = getConfigFileProperties(configFilePath, errMsg);
+        DirWatcher dirWatcher = new DirWatcher(props);
         Thread thread = new Thread(dirWatcher);
         thread.start();
+
+        ConfigWatcher configWatcher = new ConfigWatcher(Path.of(configFilePath, configFileName), props, dirWatcher::applyConfig);
+        try {
+            configWatcher.start();
+        } catch (IOException e) {
+            log.error("Could not watch " + configFileName + " for changes, configuration will not be reloaded: " + e.getLocalizedMessage());
+        }
+    }
+
+    /** Runs a one shot bulk import for the command line --import dirToImport configDir [tenant].
+     * Files are uploaded with the tenant's filter and servers, the first tenant if none is named, and left where they are.
+     * Progress is kept in import.checkpoint in the config dir, so running the same import again resumes it.
+     * Nothing is watched, so the tenants' watch directories aren't created.
+     * */
+    static BulkImport.Summary importTree(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            throw new IllegalArgumentException(importUsage);
+        }
+        Path dirToImport = Path.of(args[1]);
+        if (!Files.isDirectory(dirToImport)) {
+            throw new IllegalArgumentException("Directory to import " + dirToImport + ", does not exist. " + importUsage);
+        }
+        String configFilePath = args[2];
+        Properties props = getConfigFileProperties(configFilePath, importUsage);
+        Map<String, ServerRing> rings = new LinkedHashMap<>();
+        Map<String, WatchConfig> tenants = WatchConfig.tenantsFromProperties(props, rings);
+        WatchConfig tenant = args.length == 4 ? tenants.get(args[3]) : tenants.values().iterator().next();
+        if (tenant == null) {
+            throw new IllegalArgumentException("No tenant named " + args[3] + " in " + configFileName);
+        }
+        Uploader uploader = new Uploader(props);
+        try {
+            BulkImport bulkImport = new BulkImport(uploader, tenant, dirToImport, Path.of(configFilePath, BulkImport.CHECKPOINT_FILE_NAME),
+                    Integer.parseInt(props.getProperty("importThreads", String.valueOf(BulkImport.DEFAULT_THREADS))),
+                    Integer.parseInt(props.getProperty("importMaxInFlight", String.valueOf(BulkImport.DEFAULT_MAX_IN_FLIGHT))));
+            return bulkImport.run();
+        } catch (IOException e) {
+            throw new RuntimeException("Import of " + dirToImport + " failed: " + e.getLocalizedMessage(), e);
+        } finally {
+            rings.values().forEach(ServerRing::close);
+            uploader.close();
+        }
     }
 
     public static String getConfigFileName() {
@@ -73,10 +144,9 @@ public class DirWatcher implements Runnable {
             throw new IllegalArgumentException("Configuration file " + configFile.getPath() + ", does not exist.");
         }
 
-        Properties prop = new Properties();
+        Properties prop;
         try {
-            FileInputStream input = new FileInputStream(configFile.getPath());
-            prop.load(input);
+            prop = ConfigWatcher.load(configFile.toPath());
             log.info("Loaded properties from " + configFile.getPath());
         } catch (IOException ioe) {
             throw new IllegalArgumentException("Could not load properties from file: " + configFile.getPath());
@@ -86,167 +156,304 @@ public class DirWatcher implements Runnable {
 
     public DirWatcher(Properties props) {
 
-        dirToWatch = new File(getPropertyValue(props,"watchDirectory"));
-        if (!dirToWatch.exists() && !dirToWatch.mkdirs()) {
-            log.error("Could not create directory that we will watch: " + dirToWatch);
+        tenants = WatchConfig.tenantsFromProperties(props, rings);
+        for (WatchConfig tenant : tenants.values()) {
+            createDirToWatch(tenant);
+        }
+        int threads = getWorkerThreads(props);
+        uploader = new Uploader(props);
+        // here rather than on the first file, before there is anything to watch or hold up
+        ClientEvents.load();
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "DirWatcher-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        log.info("Watching " + tenants.size() + " directories with " + threads + " workers, dictionaryEncoding=" + uploader.isDictionaryEncoding()
+                + " deltaSync=" + uploader.isDeltaSync());
+    }
+
+    private static int getWorkerThreads(Properties props) {
+        int threads = Integer.parseInt(props.getProperty("workerThreads", String.valueOf(defaultWorkerThreads)));
+        if (threads < 1) {
+            throw new IllegalArgumentException("workerThreads must be at least 1, was " + threads);
+        }
+        return threads;
+    }
+
+    private static void createDirToWatch(WatchConfig tenant) {
+        if (!tenant.dirToWatch.exists() && !tenant.dirToWatch.mkdirs()) {
+            log.error("Could not create directory that we will watch: " + tenant.dirToWatch);
+        }
+    }
+
+    /** Applies a changed configuration without stopping.
+     * Every tenant is validated first and then all of them are swapped in together,
+     * files already being processed finish with the configuration they started with.
+     * New tenants and changed watch directories are watched right away, removed tenants stop being watched,
+     * and the worker pool is resized in place.
+     * */
+    public synchronized void applyConfig(Properties props) {
+        Map<String, ServerRing> updatedRings = new LinkedHashMap<>(rings);
+        Map<String, WatchConfig> updated = WatchConfig.tenantsFromProperties(props, updatedRings);
+        int threads = getWorkerThreads(props);
+        // the last setting that can be refused, everything after this goes ahead
+        uploader.applyConfig(props);
+
+        Set<ServerRing> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (WatchConfig tenant : updated.values()) {
+            used.add(tenant.servers);
+            createDirToWatch(tenant);
+        }
+        updatedRings.values().removeIf(ring -> !used.contains(ring));
+        if (service != null) {
+            used.forEach(ServerRing::start);
         }
-        keyPattern = Pattern.compile(getPropertyValue(props,"watchDirectoryFilterPattern"));
-        scannerServerURL = getPropertyValue(props,"scannerServerURL");
 
-        log.info("Watching " + dirToWatch);
+        Map<String, WatchConfig> previous = tenants;
+        tenants = updated;
+        scheduler.retainTenants(updated.keySet());
+        resizeWorkers(threads);
+        if (service != null) {
+            for (WatchConfig tenant : previous.values()) {
+                WatchConfig replacement = updated.get(tenant.name);
+                if (replacement == null || !sameDir(tenant, replacement)) {
+                    unregister(tenant.name);
+                }
+            }
+            for (WatchConfig tenant : updated.values()) {
+                WatchConfig before = previous.get(tenant.name);
+                if (before == null || !sameDir(before, tenant)) {
+                    register(tenant);
+                }
+            }
+        }
+        for (ServerRing ring : rings.values()) {
+            if (!used.contains(ring)) {
+                ring.close();
+            }
+        }
+        rings = updatedRings;
+        uploader.closeUnusedFramedConnections(used);
+        log.info("Applied new configuration, tenants=" + updated.keySet() + " workerThreads=" + threads + " dictionaryEncoding=" + uploader.isDictionaryEncoding()
+                + " deltaSync=" + uploader.isDeltaSync());
     }
 
-    private String getPropertyValue(Properties props, String key){
-        String val = props.getProperty(key);
-        if (val == null){
-            throw new IllegalArgumentException("Property not set for key: "+ key);
+    private static boolean sameDir(WatchConfig a, WatchConfig b) {
+        return a.dirToWatch.getAbsoluteFile().equals(b.dirToWatch.getAbsoluteFile());
+    }
+
+    private void resizeWorkers(int threads) {
+        // grow the maximum first and shrink the core first, so core never exceeds max
+        if (threads > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(threads);
+            workers.setCorePoolSize(threads);
+        } else if (threads < workers.getMaximumPoolSize()) {
+            workers.setCorePoolSize(threads);
+            workers.setMaximumPoolSize(threads);
+        }
+    }
+
+    /** Must hold the lock on this. */
+    private void register(WatchConfig tenant) {
+        Path path = tenant.dirToWatch.getAbsoluteFile().toPath();
+        try {
+            watchKeys.put(path.register(service, ENTRY_CREATE), tenant.name);
+            log.info("Tenant " + tenant.name + " watching " + path);
+        } catch (IOException e) {
+            log.error("Problem watching dir: " + path + " for tenant " + tenant.name + " " + e.getLocalizedMessage());
         }
-        return val;
+    }
+
+    /** Must hold the lock on this. */
+    private void unregister(String tenantName) {
+        watchKeys.entrySet().removeIf(entry -> {
+            if (entry.getValue().equals(tenantName)) {
+                entry.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
     }
 
     @Override
     public void run() {
-        log.debug("run - dirToWatch=" + dirToWatch.getAbsolutePath());
-        Path path = FileSystems.getDefault().getPath(dirToWatch.getAbsolutePath());
-        FileSystem fs = path.getFileSystem();
-        try (WatchService service = fs.newWatchService()) {
-            path.register(service, ENTRY_CREATE);
-            WatchKey key = null;
+        FileSystem fs = FileSystems.getDefault();
+        try (WatchService watchService = fs.newWatchService()) {
+            synchronized (this) {
+                service = watchService;
+                for (WatchConfig tenant : tenants.values()) {
+                    log.debug("run - tenant=" + tenant.name + " dirToWatch=" + tenant.dirToWatch.getAbsolutePath());
+                    tenant.servers.start();
+                    register(tenant);
+                }
+            }
 
             while (true) {
-                key = service.take();
+                WatchKey key = watchService.take();
+                String tenantName = watchKeys.get(key);
+                Path dir = (Path) key.watchable();
 
                 Kind<?> kind = null;
                 for (WatchEvent<?> watchEvent : key.pollEvents()) {
                     // Get the type of the event
                     kind = watchEvent.kind();
-                    if (OVERFLOW == kind) {
-                        log.warn("DirWatcher overflow, we may have seen too many files created to handle, and will want to reread dir");
+                    if (tenantName == null) {
+                        log.debug("Ignoring event for directory no tenant watches anymore: " + dir);
+                    } else if (OVERFLOW == kind) {
+                        log.warn("DirWatcher overflow for tenant " + tenantName + ", rereading dir " + dir);
+                        rescan(tenantName, dir);
                     } else if (ENTRY_CREATE == kind) {
                         Object o = watchEvent.context();
                         if (o != null) {
                             log.info("Found new file: " + watchEvent.context());
                             @SuppressWarnings("unchecked")
                             WatchEvent<Path> we = (WatchEvent<Path>) watchEvent;
-                            Path newPath = we.context();
-
-                            processFile(newPath);
+                            enqueue(tenantName, dir.resolve(we.context()));
                         } else {
                             log.warn("null context");
                         }
                     }
                 }
+                // without a reset the key is never signalled again and later files would go unnoticed
+                if (!key.reset()) {
+                    watchKeys.remove(key);
+                    log.warn("No longer watching " + dir);
+                }
             }
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | ClosedWatchServiceException e) {
             log.info("Stopping current thread");
         } catch (Exception e) {
-            log.error("Problem watching dir: " + dirToWatch.getAbsolutePath() + " " + e.getLocalizedMessage());
+            log.error("Problem watching dirs: " + tenants.keySet() + " " + e.getLocalizedMessage());
             throw new RuntimeException(e);
+        } finally {
+            synchronized (this) {
+                service = null;
+                watchKeys.clear();
+            }
+            shutdown();
+        }
+    }
+
+    /** Releases the server rings, worker threads and framed connections. */
+    synchronized void shutdown() {
+        rings.values().forEach(ServerRing::close);
+        workers.shutdown();
+        uploader.close();
+    }
+
+    private void rescan(String tenantName, Path dir) {
+        File[] files = dir.toFile().listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                enqueue(tenantName, file.toPath());
+            }
         }
     }
 
+    /** Queues a detected file with the scheduler and wakes a worker to take the next one, which may be another tenant's. */
+    private void enqueue(String tenantName, Path path) {
+        WatchConfig tenant = tenants.get(tenantName);
+        if (tenant == null) {
+            return;
+        }
+        File file = path.toFile();
+        TenantScheduler.FileTask task = new TenantScheduler.FileTask(tenantName, path, file.length(), file.lastModified());
+        ClientEvents.FileDetected detected = new ClientEvents.FileDetected();
+        if (detected.shouldCommit()) {
+            detected.correlationId = task.correlationId;
+            detected.sourceFile = path.getFileName().toString();
+            detected.tenant = tenantName;
+            detected.bytes = task.size;
+            detected.deliveryDelay = task.lastModified == 0 ? 0 : Math.max(0, System.currentTimeMillis() - task.lastModified);
+            detected.commit();
+        }
+        scheduler.add(task, tenant.weight, tenant.priority);
+        workers.execute(this::processNext);
+    }
+
+    private void processNext() {
+        TenantScheduler.FileTask task = scheduler.poll();
+        if (task == null) {
+            return;
+        }
+        WatchConfig tenant = tenants.get(task.tenant);
+        if (tenant == null) {
+            log.warn("Tenant " + task.tenant + " was removed, leaving " + task.file);
+            return;
+        }
+        ClientEvents.FileDequeued dequeued = new ClientEvents.FileDequeued();
+        if (dequeued.shouldCommit()) {
+            dequeued.correlationId = task.correlationId;
+            dequeued.sourceFile = task.file.getFileName().toString();
+            dequeued.tenant = task.tenant;
+            dequeued.queued = System.nanoTime() - task.detectedNanos;
+            dequeued.commit();
+        }
+        try {
+            processFile(tenant, task.file.toFile(), task.correlationId);
+        } catch (RuntimeException e) {
+            log.error("Problem processing " + task.file + " for tenant " + task.tenant + ", leaving it in place: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /** Per server load statistics, keyed by tenant name and server url. */
+    public Map<String, String> getServerStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        for (WatchConfig tenant : tenants.values()) {
+            for (Map.Entry<String, String> entry : tenant.servers.getNodeStats().entrySet()) {
+                stats.put(tenant.name + " " + entry.getKey(), entry.getValue());
+            }
+        }
+        return stats;
+    }
+
+    /** Number of detected files waiting for a worker, per tenant. */
+    public Map<String, Integer> getQueuedFiles() {
+        return scheduler.queuedPerTenant();
+    }
+
     /**
-     * processFile takes a Path argument pointing to the newly detected file name,
+     * processFile takes a newly detected file of a tenant,
      * reads the contents of the file into a map,
      * filters the keys,
      * forwards the filtered map to a server and
      * deletes the source file.
      */
-    private void processFile(Path newPath) {
-        File contextFile = newPath.toFile();
-        log.debug("Processing  context " + contextFile.getAbsolutePath());
-        //the context file is referenced to the current project and not the watched directory
-        File file = new File(dirToWatch.getAbsolutePath() + File.separator + contextFile.getPath());
-        log.debug("adjusted location " + file.getAbsolutePath());
+    private void processFile(WatchConfig tenant, File file, String correlationId) {
+        log.debug("Processing " + file.getAbsolutePath() + " for tenant " + tenant.name + " correlationId=" + correlationId);
 
         if (file.exists()) {
             log.debug("file exists: " + file.getAbsolutePath());
         } else {
+            // already handled, an overflow rescan can queue a file twice
             log.error("File not found: " + file.getAbsolutePath());
+            return;
         }
 
-        //read file into a map,
-        Properties props = new Properties();
+        Map<String, String> filteredMap;
         try {
-            props.load(new FileInputStream(file.getAbsolutePath()));
+            filteredMap = uploader.readFilteredMap(tenant, file, correlationId);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        //filter keys
-        Map<String, String> filteredMap = new HashMap<>();
-        filteredMap.put("sourceFile", file.getName());
-
-        Enumeration<?> keys = props.propertyNames();
-
-        // Iterate over the keys using Iterator<String>
-        while (keys.hasMoreElements()) {
-            String key = (String) keys.nextElement(); // Cast to String
-
-            if (key.matches(keyPattern.pattern())) {
-                log.debug("key " + key + " matched pattern " + keyPattern.pattern());
-                filteredMap.put(key, props.getProperty(key));
+        //send filtered map to server, http sends complete before this returns, framed ones when the server acks
+        sendMapToServer(tenant.servers, filteredMap, correlationId).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                log.error("Problem sending " + file.getAbsolutePath() + " for tenant " + tenant.name + " correlationId=" + correlationId + ", leaving it in place: " + failure.getLocalizedMessage());
+            } else if (!file.delete()) {
+                log.error("Couldn't delete: " + file.getAbsolutePath());
             } else {
-                log.debug("key " + key + " did not match pattern " + keyPattern.pattern());
+                log.info("Deleted: " + file.getAbsolutePath());
             }
-        }
-
-        //send filtered map to server
-        sendMapToServer(filteredMap);
-
-        if (!file.delete()) {
-            log.error("Couldn't delete: " + file.getAbsolutePath());
-        } else {
-            log.info("Deleted: " + file.getAbsolutePath());
-        }
+        });
     }
 
-    /** Sends the Map of parameters to the server defined via json text.
-     * This option isn't the simplest but is language agnostic and easy to expand as needs arise.
-     * For this case I could have easily used form data key/values or serialized objects.
-     * */
-    private void sendMapToServer(Map<String, String> filteredMap) {
-        log.debug("Sending map to server");
-        // Serialize map to JSON
-        try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            String json = objectMapper.writeValueAsString(filteredMap);
-
-            log.debug("opening connection to "+ scannerServerURL);
-
-            // Open connection
-            URL url = new URI(scannerServerURL).toURL();
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            // Write JSON payload to request body
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = json.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-                log.debug("sent json "+ json);
-            }
-
-            // Send the request and read the response
-            int responseCode = connection.getResponseCode();
-            log.debug("Response Code: " + responseCode);
-
-            // not going overboard with response code handling, but this is where it would go
-
-            // Close connection
-            connection.disconnect();
-
-        } catch (JsonProcessingException e){
-            log.error("Error encoding json from map: "+e.getLocalizedMessage(),e);
-            throw new RuntimeException(e);
-        } catch (IOException e){
-            log.error("Error sending http request: "+e.getLocalizedMessage(),e);
-            throw new RuntimeException(e);
-        } catch (URISyntaxException e) {
-            log.error("Error building url: "+e.getLocalizedMessage(),e);
-            throw new RuntimeException(e);
-        }
-        log.debug("data sent");
+    /** Sends filteredMap with {@link Uploader#sendMapToServer}, failing over on the worker threads. */
+    CompletableFuture<Void> sendMapToServer(ServerRing servers, Map<String, String> filteredMap, String correlationId) {
+        return uploader.sendMapToServer(servers, filteredMap, correlationId, workers);
     }
 }
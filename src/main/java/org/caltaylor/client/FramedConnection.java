@@ -0,0 +1,208 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.Frame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** FramedConnection is the client end of the framed TCP transport, one long lived connection to one JsonServer.
+ * {@link #send(byte[])} writes the document and returns straight away with a future that completes when the
+ * server acks it, so many documents are on the wire at once without per request headers or round trips.
+ * At most window documents are unacknowledged at a time, send blocks when the window is full.
+ * If the connection breaks every unacknowledged document fails, and the next send reconnects.
+ * With {@link #sendEncoded(Map, byte[])} documents go out in the {@link DictionaryEncoding} mode,
+ * each key's text crosses the connection once and after that only its id does.
+ * */
+class FramedConnection implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(FramedConnection.class);
+    static final int DEFAULT_WINDOW = 1024;
+    static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final long ackTimeoutMillis;
+    private final Semaphore window;
+    /** Documents sent on the current connection and not yet acked, by sequence number. */
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> pending = new ConcurrentSkipListMap<>();
+    /** Guarded by this. */
+    private SocketChannel channel;
+    /** Keeps counting across reconnects so a late failure of an old connection can't be mistaken for a new document. Guarded by this. */
+    private long nextSeq = 1;
+    /** The key dictionary of the current connection, replaced on reconnect. Guarded by this. */
+    private DictionaryEncoding.Encoder encoder;
+    private volatile boolean closed;
+
+    FramedConnection(String host, int port) {
+        this(host, port, DEFAULT_WINDOW, DEFAULT_ACK_TIMEOUT_MILLIS);
+    }
+
+    FramedConnection(String host, int port, int window, long ackTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.window = new Semaphore(window);
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    /** Sends one json document, the future completes once the server has written it,
+     * or fails if the server rejected it, the connection broke or no ack came within the ack timeout.
+     * @throws IOException if the document couldn't be sent at all.
+     * */
+    CompletableFuture<Void> send(byte[] json) throws IOException {
+        return send(null, json);
+    }
+
+    /** Sends one document like {@link #send(byte[])} but dictionary encoded, falling back to json
+     * once the connection's dictionary is full.
+     * @param document the document with its sourceFile, json is the same document serialized.
+     * */
+    CompletableFuture<Void> sendEncoded(Map<String, String> document, byte[] json) throws IOException {
+        return send(document, json);
+    }
+
+    private CompletableFuture<Void> send(Map<String, String> document, byte[] json) throws IOException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for room to send to " + host + ":" + port);
+        }
+        CompletableFuture<Void> acked = new CompletableFuture<>();
+        synchronized (this) {
+            long seq;
+            try {
+                connectIfNeeded();
+                seq = nextSeq++;
+            } catch (IOException e) {
+                window.release();
+                throw e;
+            }
+            pending.put(seq, acked);
+            acked.orTimeout(ackTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((ignored, failure) -> {
+                pending.remove(seq);
+                window.release();
+            });
+            try {
+                DictionaryEncoding.Encoded encoded = document == null ? null : encoder.encode(document);
+                if (encoded == null) {
+                    new Frame(Frame.DOCUMENT, seq, json).write(channel);
+                } else {
+                    if (encoded.getDefinitions() != null) {
+                        new Frame(Frame.DEFINE_KEYS, 0, encoded.getDefinitions()).write(channel);
+                    }
+                    new Frame(Frame.ENCODED_DOCUMENT, seq, encoded.getDocument()).write(channel);
+                }
+            } catch (IOException e) {
+                connectionLost(channel, e);
+                throw e;
+            }
+        }
+        return acked;
+    }
+
+    /** Must hold the lock on this. */
+    private void connectIfNeeded() throws IOException {
+        if (closed) {
+            throw new IOException("Connection to " + host + ":" + port + " is closed");
+        }
+        if (channel != null) {
+            return;
+        }
+        SocketChannel opened = SocketChannel.open();
+        try {
+            opened.socket().setTcpNoDelay(true);
+            opened.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+        encoder = new DictionaryEncoding.Encoder();
+        long firstSeq = nextSeq;
+        Thread reader = new Thread(() -> readAcks(opened, firstSeq), "DirWatcher-framed-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+        log.info("Opened framed connection to " + host + ":" + port);
+    }
+
+    private void readAcks(SocketChannel from, long firstSeq) {
+        try {
+            Frame frame;
+            while ((frame = Frame.read(from)) != null) {
+                if (frame.getType() == Frame.ACK) {
+                    for (CompletableFuture<Void> acked : pending.subMap(firstSeq, true, frame.getSeq(), true).values()) {
+                        acked.complete(null);
+                    }
+                } else if (frame.getType() == Frame.REJECT) {
+                    CompletableFuture<Void> rejected = pending.get(frame.getSeq());
+                    if (rejected != null) {
+                        rejected.completeExceptionally(new IOException("Server " + host + ":" + port + " rejected the document: "
+                                + new String(frame.getPayload(), StandardCharsets.UTF_8)));
+                    }
+                } else if (frame.getType() == Frame.TOO_LARGE) {
+                    CompletableFuture<Void> refused = pending.get(frame.getSeq());
+                    if (refused != null) {
+                        refused.completeExceptionally(new RejectedUploadException("Server " + host + ":" + port + " refused the document: "
+                                + new String(frame.getPayload(), StandardCharsets.UTF_8)));
+                    }
+                } else {
+                    throw new IOException("Unexpected frame from server: " + frame);
+                }
+            }
+            connectionLost(from, new IOException("Server " + host + ":" + port + " closed the connection"));
+        } catch (IOException e) {
+            connectionLost(from, e);
+        }
+    }
+
+    /** Fails everything still waiting for an ack on from, unless a newer connection has already replaced it. */
+    private void connectionLost(SocketChannel from, IOException cause) {
+        long sentOnLostConnections;
+        synchronized (this) {
+            if (channel != from) {
+                return;
+            }
+            channel = null;
+            sentOnLostConnections = nextSeq;
+        }
+        try {
+            from.close();
+        } catch (IOException e) {
+            log.debug("Error closing framed connection: " + e.getLocalizedMessage());
+        }
+        if (!closed) {
+            log.warn("Framed connection to " + host + ":" + port + " lost with " + pending.size() + " documents unacknowledged: " + cause.getLocalizedMessage());
+        }
+        for (CompletableFuture<Void> unacked : pending.headMap(sentOnLostConnections).values()) {
+            unacked.completeExceptionally(cause);
+        }
+    }
+
+    int getUnacknowledged() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        SocketChannel current;
+        synchronized (this) {
+            current = channel;
+        }
+        if (current != null) {
+            connectionLost(current, new IOException("Connection to " + host + ":" + port + " closed"));
+        }
+    }
+}
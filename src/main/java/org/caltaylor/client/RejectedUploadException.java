@@ -0,0 +1,14 @@
+package org.caltaylor.client;
+
+import java.io.IOException;
+
+/** A server refused the document itself, for instance because it is larger than the server accepts.
+ * Unlike a server being down or overloaded, sending it to another server won't help, so it isn't failed over.
+ * */
+class RejectedUploadException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RejectedUploadException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,346 @@
+package org.caltaylor.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** ServerRing spreads uploads across one or more JsonServer nodes.
+ * Each node is placed on a consistent hash ring many times (virtual nodes) so that
+ * documents for the same sourceFile always land on the same server, and adding or removing
+ * a server only moves the keys that hashed next to it.
+ * A background health check probes every node and a node that fails a send is marked down
+ * until the next successful probe or send, so callers fail over to the next node on the ring.
+ * Http nodes are probed with a HEAD request, so a server that is draining and answers 503 stays down,
+ * framed nodes with a TCP connect.
+ * */
+public class ServerRing implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ServerRing.class);
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+    static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 5000;
+    private static final int HEALTH_CHECK_TIMEOUT_MILLIS = 1000;
+
+    private final int virtualNodes;
+    private final long healthCheckIntervalMillis;
+    private final List<ServerNode> nodes;
+    private final NavigableMap<Long, ServerNode> ring;
+    private ScheduledExecutorService healthChecker;
+
+    /** @param serverURLs comma separated list of server urls, such as http://host1:1337/json,http://host2:1337/json */
+    public ServerRing(String serverURLs, int virtualNodes, long healthCheckIntervalMillis) {
+        this(parseServerURLs(serverURLs), virtualNodes, healthCheckIntervalMillis);
+    }
+
+    public ServerRing(List<String> serverURLs, int virtualNodes, long healthCheckIntervalMillis) {
+        if (serverURLs.isEmpty()) {
+            throw new IllegalArgumentException("At least one server url is required.");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1, was " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+
+        List<ServerNode> nodeList = new ArrayList<>();
+        NavigableMap<Long, ServerNode> ringMap = new TreeMap<>();
+        for (String serverURL : serverURLs) {
+            ServerNode node = new ServerNode(serverURL);
+            nodeList.add(node);
+            for (int i = 0; i < virtualNodes; i++) {
+                ringMap.put(hash(serverURL + "#" + i), node);
+            }
+        }
+        this.nodes = Collections.unmodifiableList(nodeList);
+        this.ring = ringMap;
+        log.info("Built server ring with " + nodes.size() + " nodes and " + virtualNodes + " virtual nodes each");
+    }
+
+    static List<String> parseServerURLs(String serverURLs) {
+        List<String> urls = new ArrayList<>();
+        if (serverURLs != null) {
+            for (String url : serverURLs.split(",")) {
+                String trimmed = url.trim();
+                if (!trimmed.isEmpty() && !urls.contains(trimmed)) {
+                    urls.add(trimmed);
+                }
+            }
+        }
+        return urls;
+    }
+
+    /** Starts probing every node in the background. Safe to call more than once. */
+    public synchronized void start() {
+        if (healthChecker != null || healthCheckIntervalMillis <= 0) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ServerRing-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    /** Returns the distinct nodes in ring order starting at the position of sourceFile.
+     * Healthy nodes come first, unhealthy ones are kept at the end as a last resort.
+     * */
+    public List<ServerNode> candidatesFor(String sourceFile) {
+        List<ServerNode> healthy = new ArrayList<>(nodes.size());
+        List<ServerNode> unhealthy = new ArrayList<>(0);
+        if (nodes.size() == 1) {
+            healthy.add(nodes.get(0));
+            return healthy;
+        }
+        long h = hash(sourceFile);
+        addDistinct(ring.tailMap(h, true).values(), healthy, unhealthy);
+        if (healthy.size() + unhealthy.size() < nodes.size()) {
+            addDistinct(ring.headMap(h, false).values(), healthy, unhealthy);
+        }
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    private void addDistinct(Iterable<ServerNode> ringNodes, List<ServerNode> healthy, List<ServerNode> unhealthy) {
+        for (ServerNode node : ringNodes) {
+            if (healthy.size() + unhealthy.size() == nodes.size()) {
+                return;
+            }
+            if (!healthy.contains(node) && !unhealthy.contains(node)) {
+                (node.isHealthy() ? healthy : unhealthy).add(node);
+            }
+        }
+    }
+
+    /** The node that currently owns sourceFile. */
+    public ServerNode nodeFor(String sourceFile) {
+        return candidatesFor(sourceFile).get(0);
+    }
+
+    public List<ServerNode> getNodes() {
+        return nodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /** Per node load statistics keyed by server url, suitable for logging or exposing to monitoring. */
+    public Map<String, String> getNodeStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        for (ServerNode node : nodes) {
+            stats.put(node.getUrl(), node.statsString());
+        }
+        return stats;
+    }
+
+    void checkHealth() {
+        for (ServerNode node : nodes) {
+            boolean reachable = probe(node);
+            if (reachable != node.isHealthy()) {
+                log.warn("Server " + node.getUrl() + " is now " + (reachable ? "up" : "down"));
+            }
+            node.setHealthy(reachable);
+        }
+        log.debug("Server ring stats " + getNodeStats());
+    }
+
+    private boolean probe(ServerNode node) {
+        if (node.isFramed()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(node.getHost(), node.getPort()), HEALTH_CHECK_TIMEOUT_MILLIS);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) URI.create(node.getUrl()).toURL().openConnection();
+            connection.setConnectTimeout(HEALTH_CHECK_TIMEOUT_MILLIS);
+            connection.setReadTimeout(HEALTH_CHECK_TIMEOUT_MILLIS);
+            connection.setRequestMethod("HEAD");
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= 500) {
+                log.debug("Server " + node.getUrl() + " answered the health check with " + responseCode);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /** 64 bit FNV-1a followed by the murmur3 finalizer so short, similar keys spread over the whole ring. */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** One JsonServer endpoint along with its health and load counters. */
+    public static class ServerNode {
+        private final String url;
+        private final String host;
+        private final int port;
+        private final boolean framed;
+        private volatile boolean healthy = true;
+        private volatile boolean deltaSupported;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        ServerNode(String url) {
+            this.url = url;
+            try {
+                URI uri = new URI(url);
+                if (uri.getHost() == null) {
+                    throw new IllegalArgumentException("Server url has no host: " + url);
+                }
+                if (isFramed(uri) && uri.getPort() == -1) {
+                    throw new IllegalArgumentException("Framed server url needs a port: " + url);
+                }
+                this.host = uri.getHost();
+                this.port = uri.getPort() != -1 ? uri.getPort() : ("https".equals(uri.getScheme()) ? 443 : 80);
+                this.framed = isFramed(uri);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid server url: " + url, e);
+            }
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /** True for a tcp://host:port url, which is sent to over the framed TCP transport instead of http. */
+        public boolean isFramed() {
+            return framed;
+        }
+
+        private static boolean isFramed(URI uri) {
+            return "tcp".equals(uri.getScheme());
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        void setHealthy(boolean healthy) {
+            this.healthy = healthy;
+        }
+
+        /** True once the server's last answer said it takes delta uploads, see {@link org.caltaylor.common.DocumentDelta}. */
+        public boolean isDeltaSupported() {
+            return deltaSupported;
+        }
+
+        void setDeltaSupported(boolean deltaSupported) {
+            this.deltaSupported = deltaSupported;
+        }
+
+        /** Called before a request is sent, returns the start time to hand back to onSuccess. */
+        long onSend() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void onSuccess(long startNanos, int bytes) {
+            inFlight.decrementAndGet();
+            sent.incrementAndGet();
+            bytesSent.addAndGet(bytes);
+            totalLatencyNanos.addAndGet(System.nanoTime() - startNanos);
+            healthy = true;
+        }
+
+        void onFailure() {
+            inFlight.decrementAndGet();
+            failed.incrementAndGet();
+            healthy = false;
+        }
+
+        /** Called when the server refused the document itself, the server is working so it stays healthy. */
+        void onRejected() {
+            inFlight.decrementAndGet();
+            failed.incrementAndGet();
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getAverageLatencyMicros() {
+            long count = sent.get();
+            return count == 0 ? 0 : totalLatencyNanos.get() / count / 1000;
+        }
+
+        String statsString() {
+            return "healthy=" + healthy + " sent=" + getSent() + " failed=" + getFailed() + " bytes=" + getBytesSent()
+                    + " inFlight=" + getInFlight() + " avgLatencyMicros=" + getAverageLatencyMicros();
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.CorrelationId;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** TenantScheduler decides which detected file the shared worker pool processes next.
+ * Every tenant (watch configuration) has its own queue, ordered by the tenant's priority.
+ * Tenants are picked by stride scheduling: each pick advances the tenant's pass by 1/weight,
+ * and the non-empty tenant with the lowest pass goes next, so a tenant with weight 3 gets three
+ * files processed for every one of a tenant with weight 1, and a tenant with a huge backlog
+ * can't starve a quiet one. A tenant that was idle rejoins at the current virtual time
+ * rather than cashing in the turns it didn't need.
+ * */
+class TenantScheduler {
+    private static final long STRIDE = 1L << 20;
+
+    /** The order files of one tenant are processed in. */
+    enum Priority {
+        FIFO(Comparator.comparingLong(t -> t.sequence)),
+        SMALLEST_FIRST(Comparator.<FileTask>comparingLong(t -> t.size).thenComparingLong(t -> t.sequence)),
+        OLDEST_FIRST(Comparator.<FileTask>comparingLong(t -> t.lastModified).thenComparingLong(t -> t.sequence));
+
+        final Comparator<FileTask> comparator;
+
+        Priority(Comparator<FileTask> comparator) {
+            this.comparator = comparator;
+        }
+    }
+
+    /** A file detected in a tenant's watch directory, waiting for a worker. */
+    static class FileTask {
+        final String tenant;
+        final Path file;
+        final long size;
+        final long lastModified;
+        /** Assigned when the file is detected, it follows the file to the server. */
+        final String correlationId = CorrelationId.next();
+        final long detectedNanos = System.nanoTime();
+        long sequence;
+
+        FileTask(String tenant, Path file, long size, long lastModified) {
+            this.tenant = tenant;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return tenant + ":" + file;
+        }
+    }
+
+    private static class TenantQueue {
+        PriorityQueue<FileTask> tasks;
+        Priority priority;
+        long stride;
+        long pass;
+        /** The tenant is no longer configured, the queue goes once its last file is taken. */
+        boolean retired;
+
+        TenantQueue(Priority priority) {
+            this.priority = priority;
+            this.tasks = new PriorityQueue<>(priority.comparator);
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, TenantQueue> queues = new LinkedHashMap<>();
+    private long virtualTime;
+    private long sequence;
+    private int size;
+
+    /** Queues task for its tenant, using the weight and priority the tenant currently has. */
+    void add(FileTask task, int weight, Priority priority) {
+        lock.lock();
+        try {
+            TenantQueue queue = queues.computeIfAbsent(task.tenant, tenant -> new TenantQueue(priority));
+            if (queue.priority != priority) {
+                PriorityQueue<FileTask> reordered = new PriorityQueue<>(priority.comparator);
+                reordered.addAll(queue.tasks);
+                queue.tasks = reordered;
+                queue.priority = priority;
+            }
+            queue.retired = false;
+            queue.stride = STRIDE / Math.max(1, weight);
+            if (queue.tasks.isEmpty()) {
+                queue.pass = Math.max(queue.pass, virtualTime);
+            }
+            task.sequence = sequence++;
+            queue.tasks.add(task);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The next file to process, or null if nothing is queued. */
+    FileTask poll() {
+        lock.lock();
+        try {
+            TenantQueue next = null;
+            for (TenantQueue queue : queues.values()) {
+                if (!queue.tasks.isEmpty() && (next == null || queue.pass < next.pass)) {
+                    next = queue;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            virtualTime = next.pass;
+            next.pass += next.stride;
+            size--;
+            FileTask task = next.tasks.poll();
+            if (next.retired && next.tasks.isEmpty()) {
+                queues.remove(task.tenant);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the queues of tenants not in configured once they are empty, after a reload removed them. */
+    void retainTenants(Set<String> configured) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<String, TenantQueue>> entries = queues.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, TenantQueue> entry = entries.next();
+                if (!configured.contains(entry.getKey())) {
+                    if (entry.getValue().tasks.isEmpty()) {
+                        entries.remove();
+                    } else {
+                        entry.getValue().retired = true;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Number of queued files per tenant. */
+    Map<String, Integer> queuedPerTenant() {
+        lock.lock();
+        try {
+            Map<String, Integer> queued = new LinkedHashMap<>();
+            for (Map.Entry<String, TenantQueue> entry : queues.entrySet()) {
+                queued.put(entry.getKey(), entry.getValue().tasks.size());
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
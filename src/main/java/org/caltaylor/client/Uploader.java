@@ -0,0 +1,346 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.CorrelationId;
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.DocumentDelta;
+import org.caltaylor.common.SymbolTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/** Uploader reads a tenant's file, filters it down to the keys the tenant keeps and sends it to the tenant's servers,
+ * failing over along the ring when a server can't take it.
+ * It holds what outlives a single upload, the framed connections, the shared key strings and what deltaSync remembers,
+ * and nothing about watching directories, so a bulk import uses it without a {@link DirWatcher}.
+ * Servers given as http urls get one POST per file, servers given as tcp://host:port urls share one
+ * long lived {@link FramedConnection} per server. With dictionaryEncoding=true framed connections send each key's text once
+ * and a small id after that, see {@link DictionaryEncoding}. With deltaSync=true a file sent to an http server before
+ * is sent again as just the keys that changed, see {@link DocumentDelta}.
+ * */
+class Uploader {
+    private static final Logger log = LoggerFactory.getLogger(Uploader.class);
+    private static final int httpConnectTimeoutMillis = 5000;
+    /** A server that accepted the upload but never answers would otherwise hold a worker and a socket for ever. */
+    private static final int httpReadTimeoutMillis = 60_000;
+
+    /** Open framed connections by server url. */
+    private final Map<String, FramedConnection> framedConnections = new ConcurrentHashMap<>();
+    /** Canonical key strings, so maps waiting to be sent share one copy of each recurring key. */
+    private final SymbolTable keys = new SymbolTable();
+    private volatile boolean dictionaryEncoding;
+    private volatile boolean deltaSync;
+    /** What each http server was last sent per file, only used with deltaSync on. */
+    private final DeltaTracker deltaTracker = new DeltaTracker(DeltaTracker.DEFAULT_MAX_FILES);
+
+    Uploader(Properties props) {
+        applyConfig(props);
+    }
+
+    /** Takes dictionaryEncoding, deltaSync and deltaSyncMaxFiles from props, nothing changes if any of them is unusable. */
+    void applyConfig(Properties props) {
+        int deltaSyncMaxFiles = Integer.parseInt(props.getProperty("deltaSyncMaxFiles", String.valueOf(DeltaTracker.DEFAULT_MAX_FILES)));
+        DeltaTracker.validate(deltaSyncMaxFiles);
+        deltaTracker.setMaxFiles(deltaSyncMaxFiles);
+        dictionaryEncoding = Boolean.parseBoolean(props.getProperty("dictionaryEncoding", "false"));
+        deltaSync = Boolean.parseBoolean(props.getProperty("deltaSync", "false"));
+    }
+
+    boolean isDictionaryEncoding() {
+        return dictionaryEncoding;
+    }
+
+    boolean isDeltaSync() {
+        return deltaSync;
+    }
+
+    /** Closes the framed connections to servers no ring in use has any more. */
+    void closeUnusedFramedConnections(Set<ServerRing> used) {
+        Set<String> urls = new HashSet<>();
+        for (ServerRing ring : used) {
+            for (ServerRing.ServerNode node : ring.getNodes()) {
+                urls.add(node.getUrl());
+            }
+        }
+        framedConnections.entrySet().removeIf(entry -> {
+            if (!urls.contains(entry.getKey())) {
+                entry.getValue().close();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /** Closes every framed connection. */
+    void close() {
+        framedConnections.values().forEach(FramedConnection::close);
+        framedConnections.clear();
+    }
+
+    /** Reads file into a map holding its sourceFile name and the keys matching the tenant's filter. */
+    Map<String, String> readFilteredMap(WatchConfig tenant, File file, String correlationId) throws IOException {
+        Pattern keyPattern = tenant.keyPattern;
+        ClientEvents.FileRead read = new ClientEvents.FileRead();
+        read.begin();
+
+        //read file into a map, closing it right away since a bulk import reads a great many of them
+        Properties props = new Properties();
+        try (FileInputStream in = new FileInputStream(file.getAbsolutePath())) {
+            props.load(in);
+        }
+
+        //filter keys
+        Map<String, String> filteredMap = new HashMap<>();
+        filteredMap.put("sourceFile", file.getName());
+
+        Enumeration<?> propertyNames = props.propertyNames();
+
+        // Iterate over the keys using Iterator<String>
+        while (propertyNames.hasMoreElements()) {
+            String key = (String) propertyNames.nextElement(); // Cast to String
+
+            if (keyPattern.matcher(key).matches()) {
+                log.debug("key " + key + " matched pattern " + keyPattern.pattern());
+                filteredMap.put(keys.intern(key), props.getProperty(key));
+            } else {
+                log.debug("key " + key + " did not match pattern " + keyPattern.pattern());
+            }
+        }
+        read.end();
+        if (read.shouldCommit()) {
+            read.correlationId = correlationId;
+            read.sourceFile = file.getName();
+            read.bytes = file.length();
+            read.keyCount = filteredMap.size() - 1;
+            read.commit();
+        }
+        return filteredMap;
+    }
+
+    /** Sends the Map of parameters to the server defined via json text.
+     * This option isn't the simplest but is language agnostic and easy to expand as needs arise.
+     * For this case I could have easily used form data key/values or serialized objects.
+     * The server is chosen by consistent hash of the sourceFile, if it can't be reached
+     * the next server on the ring is tried.
+     * The future completes once a server has the map, or fails once every server has failed.
+     * @param failover runs the sends to later servers when a server fails after this returned, such as a framed connection
+     *                 failing an ack on its reader thread.
+     * */
+    CompletableFuture<Void> sendMapToServer(ServerRing servers, Map<String, String> filteredMap, String correlationId, Executor failover) {
+        log.debug("Sending map to server");
+        // Serialize map to JSON
+        byte[] input;
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            String json = objectMapper.writeValueAsString(filteredMap);
+            input = json.getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException e){
+            log.error("Error encoding json from map: "+e.getLocalizedMessage(),e);
+            throw new RuntimeException(e);
+        }
+
+        return sendToCandidates(servers.candidatesFor(filteredMap.get("sourceFile")).iterator(), filteredMap, input, correlationId, failover, null);
+    }
+
+    private CompletableFuture<Void> sendToCandidates(Iterator<ServerRing.ServerNode> candidates, Map<String, String> filteredMap, byte[] input,
+                                                     String correlationId, Executor failover, Throwable lastFailure) {
+        if (!candidates.hasNext()) {
+            log.error("Error sending request, no server accepted the upload: " + lastFailure.getLocalizedMessage(), lastFailure);
+            return CompletableFuture.failedFuture(new RuntimeException(lastFailure));
+        }
+        ServerRing.ServerNode node = candidates.next();
+        long start = node.onSend();
+        ClientEvents.Upload upload = new ClientEvents.Upload();
+        upload.begin();
+        CompletableFuture<Void> sent;
+        try {
+            sent = send(node, filteredMap, input, correlationId);
+        } catch (IOException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        boolean doneRightAway = sent.isDone();
+        return sent.handle((ignored, failure) -> {
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            recordUpload(upload, node, filteredMap, input, correlationId, cause);
+            if (failure == null) {
+                node.onSuccess(start, input.length);
+                log.debug("data sent to " + node.getUrl());
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (cause instanceof RejectedUploadException) {
+                node.onRejected();
+                log.error("Server " + node.getUrl() + " refused the upload: " + cause.getLocalizedMessage());
+                return CompletableFuture.<Void>failedFuture(cause);
+            }
+            node.onFailure();
+            log.warn("Error sending request to " + node.getUrl() + ", failing over: " + cause.getLocalizedMessage());
+            if (doneRightAway) {
+                return sendToCandidates(candidates, filteredMap, input, correlationId, failover, cause);
+            }
+            // a failed ack arrives on the connection's reader thread, which must not block sending to the next server
+            try {
+                return CompletableFuture.supplyAsync(() -> sendToCandidates(candidates, filteredMap, input, correlationId, failover, cause), failover).thenCompose(Function.identity());
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.<Void>failedFuture(cause);
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    private static void recordUpload(ClientEvents.Upload upload, ServerRing.ServerNode node, Map<String, String> filteredMap, byte[] input,
+                                     String correlationId, Throwable failure) {
+        upload.end();
+        if (upload.shouldCommit()) {
+            upload.correlationId = correlationId;
+            upload.sourceFile = filteredMap.get("sourceFile");
+            upload.server = node.getUrl();
+            upload.bytes = input.length;
+            upload.keyCount = filteredMap.size() - 1;
+            upload.outcome = failure == null ? "sent" : failure instanceof RejectedUploadException ? "refused" : "failed";
+            upload.commit();
+        }
+    }
+
+    private CompletableFuture<Void> send(ServerRing.ServerNode node, Map<String, String> filteredMap, byte[] input, String correlationId) throws IOException {
+        if (node.isFramed()) {
+            FramedConnection connection = framedConnections.computeIfAbsent(node.getUrl(), url -> new FramedConnection(node.getHost(), node.getPort()));
+            return dictionaryEncoding ? connection.sendEncoded(filteredMap, input) : connection.send(input);
+        }
+        int responseCode = postDeltaOrWhole(node, filteredMap, input, correlationId);
+        if (responseCode == 413) {
+            throw new RejectedUploadException("Server " + node.getUrl() + " responded with 413, the file is larger than it accepts");
+        }
+        if (responseCode >= 500 || responseCode == 408) {
+            throw new IOException("Server " + node.getUrl() + " responded with " + responseCode);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** Posts only the keys changed since the file was last sent to this server when deltaSync is on, the server has shown
+     * it takes deltas and that is smaller, and the whole file otherwise. A delta the server answers with a 4xx, such as 409
+     * because it holds another version of the file, or that a server without delta support answered, is sent again whole.
+     * */
+    private int postDeltaOrWhole(ServerRing.ServerNode node, Map<String, String> filteredMap, byte[] input, String correlationId) throws IOException {
+        if (!deltaSync) {
+            return post(node, input, correlationId, null);
+        }
+        String sourceFile = filteredMap.get("sourceFile");
+        boolean stored = false;
+        try {
+            int responseCode = -1;
+            DeltaTracker.Patch patch = node.isDeltaSupported() ? deltaTracker.diff(node.getUrl(), filteredMap) : null;
+            if (patch != null) {
+                byte[] delta = new ObjectMapper().writeValueAsBytes(patch.toBody(sourceFile));
+                if (delta.length < input.length) {
+                    responseCode = post(node, delta, correlationId, patch);
+                    if (responseCode >= 400 && responseCode < 500) {
+                        log.debug("Server " + node.getUrl() + " answered the delta of " + sourceFile + " with " + responseCode + ", sending it whole");
+                        responseCode = -1;
+                    } else if (responseCode < 400 && !node.isDeltaSupported()) {
+                        // the server behind the url no longer takes deltas, it didn't store the file as patched
+                        log.warn("Server " + node.getUrl() + " doesn't take deltas any more, sending " + sourceFile + " whole");
+                        responseCode = -1;
+                    }
+                }
+            }
+            if (responseCode == -1) {
+                responseCode = post(node, input, correlationId, null);
+            }
+            stored = responseCode < 400;
+            return responseCode;
+        } finally {
+            if (stored) {
+                deltaTracker.sent(node.getUrl(), filteredMap);
+            } else {
+                // whatever the server holds now, the next upload of the file is sent whole
+                deltaTracker.forget(node.getUrl(), sourceFile);
+            }
+        }
+    }
+
+    /** Posts input, as a delta with its versions in headers if patch isn't null, and notes whether the answer says the server takes deltas. */
+    private int post(ServerRing.ServerNode node, byte[] input, String correlationId, DeltaTracker.Patch patch) throws IOException {
+        String scannerServerURL = node.getUrl();
+        log.debug("opening connection to "+ scannerServerURL);
+
+        // Open connection
+        URL url;
+        try {
+            url = new URI(scannerServerURL).toURL();
+        } catch (URISyntaxException e) {
+            log.error("Error building url: "+e.getLocalizedMessage(),e);
+            throw new RuntimeException(e);
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean reusable = false;
+        try {
+            connection.setConnectTimeout(httpConnectTimeoutMillis);
+            connection.setReadTimeout(httpReadTimeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (correlationId != null) {
+                connection.setRequestProperty(CorrelationId.HEADER, correlationId);
+            }
+            if (patch != null) {
+                connection.setRequestProperty(DocumentDelta.BASE_HEADER, DocumentDelta.toHeader(patch.baseVersion));
+                connection.setRequestProperty(DocumentDelta.VERSION_HEADER, DocumentDelta.toHeader(patch.version));
+            }
+            connection.setDoOutput(true);
+
+            // Write JSON payload to request body
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(input, 0, input.length);
+                log.debug("sent json "+ new String(input, StandardCharsets.UTF_8));
+            }
+
+            // Send the request and read the response
+            int responseCode = connection.getResponseCode();
+            log.debug("Response Code: " + responseCode);
+            node.setDeltaSupported(connection.getHeaderField(DocumentDelta.SUPPORTED_HEADER) != null);
+
+            // not going overboard with response code handling, but this is where it would go
+
+            // reading the response to the end and closing it hands the socket back to the keep alive cache,
+            // an unread body, the error body of a 4xx or 5xx included, holds its socket until the garbage collector finds it
+            InputStream response = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (response != null) {
+                try (response) {
+                    response.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            reusable = true;
+            return responseCode;
+        } finally {
+            if (!reusable) {
+                // a request that failed part way leaves the socket in an unknown state, close it now
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.caltaylor.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/** WatchConfig holds everything DirWatcher needs to handle one file: where to look, which keys to keep and where to send them.
+ * One client can run several of them, called tenants, listed in the tenants property.
+ * A tenant's keys are prefixed with tenant.name., and any key a tenant doesn't set falls back to the unprefixed one,
+ * so settings shared by every tenant, like the server list, only need to be written once.
+ * Without a tenants property the unprefixed keys describe a single tenant named default.
+ * It is immutable, so a configuration change builds a new one and swaps it in with a single write,
+ * and a file being processed always sees one consistent version.
+ * */
+class WatchConfig {
+    static final String DEFAULT_TENANT = "default";
+
+    final String name;
+    final File dirToWatch;
+    final Pattern keyPattern;
+    final ServerRing servers;
+    final int weight;
+    final TenantScheduler.Priority priority;
+
+    private WatchConfig(String name, File dirToWatch, Pattern keyPattern, ServerRing servers, int weight, TenantScheduler.Priority priority) {
+        this.name = name;
+        this.dirToWatch = dirToWatch;
+        this.keyPattern = keyPattern;
+        this.servers = servers;
+        this.weight = weight;
+        this.priority = priority;
+    }
+
+    /** Parses and validates every tenant in props, throws IllegalArgumentException, or a subclass of it, if any value is unusable.
+     * @param rings server rings already in use keyed by their settings, tenants with the same server settings share one ring.
+     *              Rings that had to be created are added to it.
+     * */
+    static Map<String, WatchConfig> tenantsFromProperties(Properties props, Map<String, ServerRing> rings) {
+        Map<String, WatchConfig> tenants = new LinkedHashMap<>();
+        String tenantNames = props.getProperty("tenants");
+        if (tenantNames == null || tenantNames.isBlank()) {
+            tenants.put(DEFAULT_TENANT, forTenant(props, DEFAULT_TENANT, rings));
+            return tenants;
+        }
+        for (String name : tenantNames.split(",")) {
+            String trimmed = name.trim();
+            if (!trimmed.isEmpty()) {
+                tenants.put(trimmed, forTenant(props, trimmed, rings));
+            }
+        }
+        if (tenants.isEmpty()) {
+            throw new IllegalArgumentException("Property tenants doesn't name any tenant: " + tenantNames);
+        }
+        List<File> dirs = new ArrayList<>();
+        for (WatchConfig tenant : tenants.values()) {
+            File dir = tenant.dirToWatch.getAbsoluteFile();
+            if (dirs.contains(dir)) {
+                throw new IllegalArgumentException("Tenant " + tenant.name + " watches " + dir + " which another tenant already watches");
+            }
+            dirs.add(dir);
+        }
+        return tenants;
+    }
+
+    static WatchConfig forTenant(Properties props, String name, Map<String, ServerRing> rings) {
+        File dirToWatch = new File(getPropertyValue(props, name, "watchDirectory"));
+        Pattern keyPattern = Pattern.compile(getPropertyValue(props, name, "watchDirectoryFilterPattern"));
+        String serverURLs = getPropertyValue(props, name, "scannerServerURL");
+        int virtualNodes = Integer.parseInt(getPropertyValue(props, name, "virtualNodesPerServer", String.valueOf(ServerRing.DEFAULT_VIRTUAL_NODES)));
+        long healthCheckIntervalMillis = Long.parseLong(getPropertyValue(props, name, "healthCheckIntervalMillis", String.valueOf(ServerRing.DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS)));
+        String ringKey = String.join(",", ServerRing.parseServerURLs(serverURLs)) + "|" + virtualNodes + "|" + healthCheckIntervalMillis;
+        ServerRing servers = rings.get(ringKey);
+        if (servers == null) {
+            servers = new ServerRing(serverURLs, virtualNodes, healthCheckIntervalMillis);
+            rings.put(ringKey, servers);
+        }
+        int weight = Integer.parseInt(getPropertyValue(props, name, "weight", "1"));
+        if (weight < 1) {
+            throw new IllegalArgumentException("Tenant " + name + " weight must be at least 1, was " + weight);
+        }
+        TenantScheduler.Priority priority = TenantScheduler.Priority.valueOf(getPropertyValue(props, name, "priority", "FIFO").trim().toUpperCase());
+        return new WatchConfig(name, dirToWatch, keyPattern, servers, weight, priority);
+    }
+
+    private static String getPropertyValue(Properties props, String tenant, String key) {
+        String val = getPropertyValue(props, tenant, key, null);
+        if (val == null){
+            throw new IllegalArgumentException("Property not set for key: "+ key + " or tenant." + tenant + "." + key);
+        }
+        return val;
+    }
+
+    private static String getPropertyValue(Properties props, String tenant, String key, String defaultValue) {
+        return props.getProperty("tenant." + tenant + "." + key, props.getProperty(key, defaultValue));
+    }
+}
@@ -0,0 +1,131 @@
+package org.caltaylor.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/** ConfigWatcher reloads a properties file whenever it changes on disk and hands the new properties to a listener.
+ * Editors often write a file in several steps, so events are debounced until the file has been quiet for a moment.
+ * If the listener rejects the new properties by throwing, the previous configuration stays in effect.
+ * */
+public class ConfigWatcher implements Runnable, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final Path configFile;
+    private final Consumer<Properties> onChange;
+    private volatile Properties current;
+    private volatile WatchService service;
+    private Thread thread;
+
+    /** @param current the properties already applied, an unchanged file won't be handed to the listener again. */
+    public ConfigWatcher(Path configFile, Properties current, Consumer<Properties> onChange) {
+        this.configFile = configFile.toAbsolutePath();
+        this.current = current;
+        this.onChange = onChange;
+    }
+
+    public static Properties load(Path configFile) throws IOException {
+        Properties prop = new Properties();
+        try (InputStream input = Files.newInputStream(configFile)) {
+            prop.load(input);
+        }
+        return prop;
+    }
+
+    /** Starts watching on a daemon thread, returns once the watch is registered so no change can be missed. */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        service = configFile.getFileSystem().newWatchService();
+        configFile.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+        thread = new Thread(this, "ConfigWatcher-" + configFile.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Watching " + configFile + " for configuration changes");
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = containsConfigFile(key);
+                key.reset();
+                if (changed) {
+                    // wait for the writer to finish, every further event restarts the wait
+                    WatchKey more;
+                    while ((more = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped watching " + configFile);
+        }
+    }
+
+    private boolean containsConfigFile(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && configFile.getFileName().equals(context)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Loads the file and applies it if it differs from what is currently in effect. */
+    public void reload() {
+        Properties updated;
+        try {
+            updated = load(configFile);
+        } catch (IOException e) {
+            log.error("Could not reload " + configFile + ", keeping previous configuration: " + e.getLocalizedMessage());
+            return;
+        }
+        if (updated.equals(current)) {
+            log.debug("Configuration in " + configFile + " unchanged");
+            return;
+        }
+        try {
+            onChange.accept(updated);
+            current = updated;
+            log.info("Applied configuration change from " + configFile);
+        } catch (RuntimeException e) {
+            log.error("Rejected configuration change from " + configFile + ", keeping previous configuration: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            service.close();
+        } catch (IOException e) {
+            log.warn("Error closing watch service for " + configFile + ": " + e.getLocalizedMessage());
+        }
+        thread.interrupt();
+        thread = null;
+    }
+}
@@ -0,0 +1,31 @@
+package org.caltaylor.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/** CorrelationId names one file's trip through the pipeline, from the moment DirWatcher detects it
+ * to the moment JsonServer has written it. It goes to the server in the {@link #HEADER} request header and is
+ * recorded in the flight recorder events of every stage on both sides, so one recording shows the timeline of one file.
+ * An id is a random prefix picked once per process and a counter, cheap enough to make for every file.
+ * */
+public final class CorrelationId {
+    public static final String HEADER = "X-Correlation-Id";
+    private static final Pattern VALID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+    private static final String PREFIX = Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16);
+    private static final AtomicLong counter = new AtomicLong();
+
+    private CorrelationId() {
+    }
+
+    public static String next() {
+        return PREFIX + "-" + Long.toHexString(counter.incrementAndGet());
+    }
+
+    /** The id sent in a request header, or null if there was none or it isn't one we would have made,
+     * so a client can't put arbitrary text into the server's logs and recordings.
+     * */
+    public static String fromHeader(String value) {
+        return value != null && VALID.matcher(value).matches() ? value : null;
+    }
+}
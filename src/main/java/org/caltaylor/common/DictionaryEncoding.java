@@ -0,0 +1,207 @@
+package org.caltaylor.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** DictionaryEncoding is the optional key dictionary mode of the framed transport.
+ * Over one connection the client numbers every key it sends 0, 1, 2 and so on, announces new numbers in a
+ * {@link Frame#DEFINE_KEYS} frame, and from then on sends documents as {@link Frame#ENCODED_DOCUMENT} frames
+ * carrying the number instead of the key text. The dictionary lives as long as the connection, a reconnect starts a new one.
+ * Numbers and lengths are unsigned varints and strings are a varint length followed by utf-8 bytes.
+ * A DEFINE_KEYS payload is the first id, the count and that many keys.
+ * An ENCODED_DOCUMENT payload is the sourceFile, the count and that many key id and value pairs.
+ * */
+public final class DictionaryEncoding {
+    /** Most keys one connection's dictionary holds, documents with keys beyond it are sent as json. */
+    public static final int MAX_KEYS = 65536;
+    public static final String SOURCE_FILE_KEY = "sourceFile";
+
+    private DictionaryEncoding() {
+    }
+
+    /** One document as encoded by {@link Encoder#encode(Map)}. */
+    public static class Encoded {
+        private final byte[] definitions;
+        private final byte[] document;
+
+        Encoded(byte[] definitions, byte[] document) {
+            this.definitions = definitions;
+            this.document = document;
+        }
+
+        /** The DEFINE_KEYS payload for keys this document uses for the first time, null if there are none. */
+        public byte[] getDefinitions() {
+            return definitions;
+        }
+
+        /** The ENCODED_DOCUMENT payload. */
+        public byte[] getDocument() {
+            return document;
+        }
+    }
+
+    /** The client side dictionary of one connection. Not thread safe, the connection sends one document at a time. */
+    public static class Encoder {
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        /** Encodes a document whose sourceFile is held under {@link #SOURCE_FILE_KEY}, numbering keys not seen before.
+         * @return the encoded document, or null if its new keys wouldn't fit in the dictionary and it must be sent as json.
+         * */
+        public Encoded encode(Map<String, String> document) {
+            List<String> newKeys = new ArrayList<>();
+            for (String key : document.keySet()) {
+                if (!key.equals(SOURCE_FILE_KEY) && !ids.containsKey(key)) {
+                    newKeys.add(key);
+                }
+            }
+            if (ids.size() + newKeys.size() > MAX_KEYS) {
+                return null;
+            }
+            byte[] definitions = null;
+            if (!newKeys.isEmpty()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeVarint(out, ids.size());
+                writeVarint(out, newKeys.size());
+                for (String key : newKeys) {
+                    ids.put(key, ids.size());
+                    writeString(out, key);
+                }
+                definitions = out.toByteArray();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeString(out, document.getOrDefault(SOURCE_FILE_KEY, ""));
+            writeVarint(out, document.containsKey(SOURCE_FILE_KEY) ? document.size() - 1 : document.size());
+            for (Map.Entry<String, String> entry : document.entrySet()) {
+                if (!entry.getKey().equals(SOURCE_FILE_KEY)) {
+                    writeVarint(out, ids.get(entry.getKey()));
+                    writeString(out, entry.getValue());
+                }
+            }
+            return new Encoded(definitions, out.toByteArray());
+        }
+
+        public int size() {
+            return ids.size();
+        }
+    }
+
+    /** A document decoded by {@link Decoder#decode(byte[])}. */
+    public static class Decoded {
+        private final String sourceFile;
+        private final Map<String, String> values;
+
+        Decoded(String sourceFile, Map<String, String> values) {
+            this.sourceFile = sourceFile;
+            this.values = values;
+        }
+
+        public String getSourceFile() {
+            return sourceFile;
+        }
+
+        /** The document's keys, interned, and values in the order they were sent, without sourceFile. */
+        public Map<String, String> getValues() {
+            return values;
+        }
+    }
+
+    /** The server side dictionary of one connection. Not thread safe, the connection reads one frame at a time. */
+    public static class Decoder {
+        private final List<String> keys = new ArrayList<>();
+        private final SymbolTable symbols;
+
+        public Decoder(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        /** Adds the keys of a DEFINE_KEYS payload. */
+        public void define(byte[] payload) throws IOException {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                int firstId = readVarint(in);
+                int count = readVarint(in);
+                if (firstId != keys.size()) {
+                    throw new IOException("Key definitions start at " + firstId + " but the dictionary has " + keys.size());
+                }
+                if (keys.size() + count > MAX_KEYS) {
+                    throw new IOException("Key definitions would grow the dictionary past " + MAX_KEYS);
+                }
+                for (int i = 0; i < count; i++) {
+                    keys.add(symbols.intern(readString(in)));
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated key definitions", e);
+            }
+        }
+
+        public Decoded decode(byte[] payload) throws IOException {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                String sourceFile = readString(in);
+                int count = readVarint(in);
+                Map<String, String> values = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    int id = readVarint(in);
+                    if (id >= keys.size()) {
+                        throw new IOException("Document uses key id " + id + " which was never defined");
+                    }
+                    values.put(keys.get(id), readString(in));
+                }
+                return new Decoded(sourceFile, values);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated encoded document", e);
+            }
+        }
+
+        public int size() {
+            return keys.size();
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 5 bytes");
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = readVarint(in);
+        if (length > in.remaining()) {
+            throw new IOException("String of " + length + " bytes runs past the end of the frame");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
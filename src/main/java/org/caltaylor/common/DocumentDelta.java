@@ -0,0 +1,84 @@
+package org.caltaylor.common;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** DocumentDelta is what client and server agree on to send a file as the keys changed since the last upload of it.
+ * A document's version is the sum of one 64 bit hash per key and value pair, so it doesn't depend on key order
+ * and the client can keep just the hashes of what it sent instead of the values.
+ * A delta upload is a POST of {"sourceFile": name, "changed": {key: value}, "removed": [key]} with the version it
+ * applies to in {@link #BASE_HEADER} and the version it makes in {@link #VERSION_HEADER}, both in hex.
+ * The server answers 409 if what it holds isn't the base version, or patching it doesn't make the new one,
+ * and the client then sends the whole document, as it does for any other 4xx.
+ * A server that takes deltas says so with {@link #SUPPORTED_HEADER} on every upload answer, and the client only sends
+ * deltas to a server whose last answer had it, so a server that doesn't know them never gets one it would store as is.
+ * */
+public final class DocumentDelta {
+    public static final String BASE_HEADER = "X-Delta-Base";
+    public static final String VERSION_HEADER = "X-Delta-Version";
+    public static final String SUPPORTED_HEADER = "X-Delta-Supported";
+    public static final String SOURCE_FILE_KEY = "sourceFile";
+    public static final String CHANGED_KEY = "changed";
+    public static final String REMOVED_KEY = "removed";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private DocumentDelta() {
+    }
+
+    /** The hash of one key and value pair, FNV-1a over both with a separator between them, mixed so the sum spreads well. */
+    public static long entryHash(String key, String value) {
+        long hash = FNV_OFFSET;
+        hash = fnv(hash, key);
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        hash = fnv(hash, value);
+        // the murmur3 finalizer
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long fnv(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** The version of a document, a sourceFile key in it is left out. */
+    public static long version(Map<String, String> document) {
+        long version = 0;
+        for (Map.Entry<String, String> entry : document.entrySet()) {
+            if (!entry.getKey().equals(SOURCE_FILE_KEY)) {
+                version += entryHash(entry.getKey(), entry.getValue());
+            }
+        }
+        return version;
+    }
+
+    /** A copy of base with the changed keys set, new ones at the end, and the removed keys taken out. */
+    public static Map<String, String> apply(Map<String, String> base, Map<String, String> changed, Collection<String> removed) {
+        Map<String, String> patched = new LinkedHashMap<>(base);
+        patched.putAll(changed);
+        for (String key : removed) {
+            patched.remove(key);
+        }
+        return patched;
+    }
+
+    public static String toHeader(long version) {
+        return Long.toHexString(version);
+    }
+
+    /** The version in a header, as sent by {@link #toHeader(long)}.
+     * @throws NumberFormatException if it isn't one.
+     * */
+    public static long fromHeader(String value) {
+        return Long.parseUnsignedLong(value.trim(), 16);
+    }
+}
@@ -0,0 +1,144 @@
+package org.caltaylor.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** Frame is one message of the framed TCP transport between DirWatcher and JsonServer.
+ * On the wire a frame is a 4 byte length followed by that many bytes: a 1 byte type,
+ * an 8 byte sequence number and the payload.
+ * The client numbers the documents it sends on a connection with consecutive sequence numbers and keeps sending without waiting,
+ * the server answers with cumulative acks, an ack for n means every document up to and including n has been handled.
+ * A document that could not be written is rejected on its own before the ack that covers it.
+ * */
+public final class Frame {
+    /** Client to server, the payload is a json document. */
+    public static final byte DOCUMENT = 1;
+    /** Server to client, every document up to and including seq has been handled. No payload. */
+    public static final byte ACK = 2;
+    /** Server to client, document seq was not written and should be sent elsewhere. The payload is the reason. */
+    public static final byte REJECT = 3;
+    /** Server to client, document seq is larger than the server accepts, sending it to another server won't help. The payload is the reason. */
+    public static final byte TOO_LARGE = 4;
+    /** Client to server, adds keys to the connection's dictionary, see {@link DictionaryEncoding}. Not acked, seq is 0. */
+    public static final byte DEFINE_KEYS = 5;
+    /** Client to server, the payload is a document whose keys are dictionary ids, see {@link DictionaryEncoding}. Acked like DOCUMENT. */
+    public static final byte ENCODED_DOCUMENT = 6;
+
+    private static final int HEADER_BYTES = 1 + 8;
+    /** Largest frame accepted, anything bigger is treated as a corrupt stream. */
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private final byte type;
+    private final long seq;
+    private final byte[] payload;
+    private final boolean oversized;
+
+    public Frame(byte type, long seq, byte[] payload) {
+        this(type, seq, payload, false);
+    }
+
+    private Frame(byte type, long seq, byte[] payload, boolean oversized) {
+        if (payload.length > MAX_FRAME_BYTES - HEADER_BYTES) {
+            throw new IllegalArgumentException("Frame payload of " + payload.length + " bytes is larger than " + (MAX_FRAME_BYTES - HEADER_BYTES));
+        }
+        this.type = type;
+        this.seq = seq;
+        this.payload = payload;
+        this.oversized = oversized;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /** True if the payload was over the limit given to read and was skipped rather than read, the payload is then empty. */
+    public boolean isOversized() {
+        return oversized;
+    }
+
+    /** The frame as it goes on the wire, ready to be written. */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_BYTES + payload.length);
+        buffer.putInt(HEADER_BYTES + payload.length).put(type).putLong(seq).put(payload);
+        return buffer.flip();
+    }
+
+    /** Writes the whole frame to a blocking channel. Callers sharing a channel must not write concurrently. */
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = encode();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Reads the next frame from a blocking channel.
+     * @return the frame, or null if the channel was closed cleanly between frames.
+     * @throws EOFException if the channel closed part way through a frame.
+     * */
+    public static Frame read(ReadableByteChannel channel) throws IOException {
+        return read(channel, MAX_FRAME_BYTES);
+    }
+
+    /** Reads the next frame like {@link #read(ReadableByteChannel)}, but a payload over maxPayloadBytes is skipped
+     * without being held in memory and the frame comes back {@link #isOversized()}, so the stream stays usable.
+     * */
+    public static Frame read(ReadableByteChannel channel, int maxPayloadBytes) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        if (!readFully(channel, lengthBuffer, true)) {
+            return null;
+        }
+        int length = lengthBuffer.flip().getInt();
+        if (length < HEADER_BYTES || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (length - HEADER_BYTES > maxPayloadBytes) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, false);
+            header.flip();
+            byte type = header.get();
+            long seq = header.getLong();
+            ByteBuffer skipped = ByteBuffer.allocate(8192);
+            for (int remaining = length - HEADER_BYTES; remaining > 0; remaining -= skipped.limit()) {
+                skipped.clear().limit(Math.min(skipped.capacity(), remaining));
+                readFully(channel, skipped, false);
+            }
+            return new Frame(type, seq, new byte[0], true);
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, false);
+        body.flip();
+        byte type = body.get();
+        long seq = body.getLong();
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        return new Frame(type, seq, payload);
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean eofAllowedAtStart) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (eofAllowedAtStart && buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed part way through a frame");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame type=" + type + " seq=" + seq + " bytes=" + payload.length;
+    }
+}
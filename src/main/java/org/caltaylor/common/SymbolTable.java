@@ -0,0 +1,43 @@
+package org.caltaylor.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** SymbolTable interns property keys, so the few hundred keys that recur in every file are held once
+ * instead of once per document. Lookups of known keys don't lock, which keeps it cheap on every request thread.
+ * The table stops growing at maxSymbols, after that unknown keys are handed back as they are,
+ * so a client sending random keys can't make it grow without bound.
+ * */
+public class SymbolTable {
+    public static final int DEFAULT_MAX_SYMBOLS = 100_000;
+
+    private final ConcurrentHashMap<String, String> symbols = new ConcurrentHashMap<>();
+    private final int maxSymbols;
+
+    public SymbolTable() {
+        this(DEFAULT_MAX_SYMBOLS);
+    }
+
+    public SymbolTable(int maxSymbols) {
+        if (maxSymbols < 1) {
+            throw new IllegalArgumentException("maxSymbols must be at least 1, was " + maxSymbols);
+        }
+        this.maxSymbols = maxSymbols;
+    }
+
+    /** The canonical instance of key, the first one seen with its value. */
+    public String intern(String key) {
+        String canonical = symbols.get(key);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (symbols.size() >= maxSymbols) {
+            return key;
+        }
+        canonical = symbols.putIfAbsent(key, key);
+        return canonical == null ? key : canonical;
+    }
+
+    public int size() {
+        return symbols.size();
+    }
+}
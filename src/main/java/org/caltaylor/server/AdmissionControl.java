@@ -0,0 +1,213 @@
+package org.caltaylor.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** AdmissionControl keeps the memory taken by upload bodies predictable whatever clients send.
+ * A body larger than maxBodyBytes is refused with 413, from its Content-Length before anything is read when there is one,
+ * otherwise as soon as the streamed body passes the limit.
+ * All bodies being read or processed share a budget of maxInFlightBytes, an upload that doesn't fit is shed with 503
+ * so the client fails over to another server.
+ * A body that is still arriving readTimeoutMillis after the request started is refused with 408, so a client
+ * trickling a byte at a time can't hold a request thread for ever. One that stops arriving altogether is cut off
+ * by the server's read watchdog, which counts it here too.
+ * */
+class AdmissionControl {
+    private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+    private static final int READ_CHUNK_BYTES = 8192;
+
+    private volatile long maxBodyBytes;
+    private volatile long maxInFlightBytes;
+    private volatile long readTimeoutMillis;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    AdmissionControl(long maxBodyBytes, long maxInFlightBytes, long readTimeoutMillis) {
+        setLimits(maxBodyBytes, maxInFlightBytes, readTimeoutMillis);
+    }
+
+    static void validate(long maxBodyBytes, long maxInFlightBytes, long readTimeoutMillis) {
+        if (maxBodyBytes < 1) {
+            throw new IllegalArgumentException("maxBodyBytes must be at least 1, was " + maxBodyBytes);
+        }
+        if (maxInFlightBytes < maxBodyBytes) {
+            throw new IllegalArgumentException("maxInFlightBytes must be at least maxBodyBytes " + maxBodyBytes + ", was " + maxInFlightBytes);
+        }
+        if (readTimeoutMillis < 1) {
+            throw new IllegalArgumentException("readTimeoutMillis must be at least 1, was " + readTimeoutMillis);
+        }
+    }
+
+    /** Changes the limits for uploads that arrive from now on, bytes already reserved stay reserved. */
+    void setLimits(long maxBodyBytes, long maxInFlightBytes, long readTimeoutMillis) {
+        validate(maxBodyBytes, maxInFlightBytes, readTimeoutMillis);
+        this.maxBodyBytes = maxBodyBytes;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.readTimeoutMillis = readTimeoutMillis;
+        log.debug("Admission limits maxBodyBytes=" + maxBodyBytes + " maxInFlightBytes=" + maxInFlightBytes + " readTimeoutMillis=" + readTimeoutMillis);
+    }
+
+    long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /** Takes bytes from the shared budget, false if that would go over it. */
+    boolean tryReserve(long bytes) {
+        while (true) {
+            long current = inFlightBytes.get();
+            if (current + bytes > maxInFlightBytes) {
+                return false;
+            }
+            if (inFlightBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    /** Counts a document refused as too large before it was read, such as a skipped framed one. */
+    void countTooLarge() {
+        tooLarge.incrementAndGet();
+    }
+
+    /** Counts a body read cut off because the client stopped sending. */
+    void countTimedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    /** Reserves room for a document that has already been read, such as a framed one, counting it as shed if there is none. */
+    boolean admit(long bytes) {
+        if (bytes > maxBodyBytes) {
+            tooLarge.incrementAndGet();
+            return false;
+        }
+        if (!tryReserve(bytes)) {
+            overBudget.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /** Reads a whole upload body within the limits.
+     * @param contentLength the declared length, or -1 if the body is streamed without one.
+     * @param startNanos when the request started, the read timeout counts from there.
+     * @throws Rejected with the status to answer if the body breaks a limit, nothing stays reserved in that case.
+     * */
+    Body readBody(InputStream in, long contentLength, long startNanos) throws IOException {
+        long maxBody = maxBodyBytes;
+        if (contentLength > maxBody) {
+            tooLarge.incrementAndGet();
+            throw new Rejected(413, "Content-Length " + contentLength + " is larger than " + maxBody);
+        }
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        Body body = new Body();
+        try {
+            if (contentLength >= 0) {
+                reserve(body, contentLength);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(contentLength >= 0 ? (int) contentLength : READ_CHUNK_BYTES);
+            byte[] chunk = new byte[READ_CHUNK_BYTES];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (bytes.size() + read > maxBody) {
+                    tooLarge.incrementAndGet();
+                    throw new Rejected(413, "Body is larger than " + maxBody);
+                }
+                if (bytes.size() + read > body.reserved) {
+                    reserve(body, bytes.size() + read - body.reserved);
+                }
+                bytes.write(chunk, 0, read);
+                if (System.nanoTime() - deadline > 0) {
+                    timedOut.incrementAndGet();
+                    throw new Rejected(408, "Body still arriving after " + readTimeoutMillis + "ms, " + bytes.size() + " bytes read");
+                }
+            }
+            body.bytes = bytes.toByteArray();
+            return body;
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    private void reserve(Body body, long bytes) throws Rejected {
+        if (!tryReserve(bytes)) {
+            overBudget.incrementAndGet();
+            throw new Rejected(503, "In flight bytes budget of " + maxInFlightBytes + " is used up");
+        }
+        body.reserved += bytes;
+    }
+
+    long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    long getTooLarge() {
+        return tooLarge.get();
+    }
+
+    long getOverBudget() {
+        return overBudget.get();
+    }
+
+    long getTimedOut() {
+        return timedOut.get();
+    }
+
+    String statsString() {
+        return "inFlightBytes=" + getInFlightBytes() + " tooLarge=" + getTooLarge() + " overBudget=" + getOverBudget() + " timedOut=" + getTimedOut();
+    }
+
+    /** An upload body along with its share of the budget, which is given back on close. */
+    class Body implements AutoCloseable {
+        private byte[] bytes;
+        private long reserved;
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            if (reserved > 0) {
+                release(reserved);
+                reserved = 0;
+            }
+        }
+    }
+
+    /** The upload broke a limit, status is the http status to answer with. */
+    static class Rejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        Rejected(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+}
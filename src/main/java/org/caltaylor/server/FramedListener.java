@@ -0,0 +1,307 @@
+package org.caltaylor.server;
+
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.Frame;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** FramedListener accepts long lived TCP connections carrying {@link Frame}s and feeds every document
+ * into the same writer lanes the http handler uses.
+ * Documents are not waited on one at a time, each connection keeps reading while earlier documents are
+ * still being written, and acks once every document up to a sequence number is done.
+ * Since lanes finish out of order, completions beyond a gap are remembered until the gap is filled.
+ * Acks and rejects are queued and written by the connection's own writer thread, never by the writer lane that
+ * finished the document, so a client that stops reading its acks only holds up its own connection.
+ * Documents are held to the same size limit and in flight bytes budget as http uploads,
+ * a document over the limit is skipped without being read into memory and answered with TOO_LARGE,
+ * one that doesn't fit the budget is rejected so the client sends it elsewhere.
+ * Each connection keeps the key dictionary for clients using the {@link DictionaryEncoding} mode,
+ * a dictionary that gets out of step with the client is a broken stream and closes the connection.
+ * */
+class FramedListener {
+    private static final Logger log = LoggerFactory.getLogger(FramedListener.class);
+    /** How often an idle writer thread checks whether its connection was closed. */
+    private static final long WRITER_IDLE_MILLIS = 500;
+    /** How long close gives writer threads to send the acks they still have queued. */
+    private static final long CLOSE_FLUSH_MILLIS = 1000;
+
+    private final JsonServer jsonServer;
+    private final ServerSocketChannel serverChannel;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    FramedListener(JsonServer jsonServer, int port) throws IOException {
+        this.jsonServer = jsonServer;
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "JsonServer-framed-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Accepting framed connections on port " + getPort());
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connections.add(connection);
+                Thread reader = new Thread(connection, "JsonServer-framed-" + channel.getRemoteAddress());
+                reader.setDaemon(true);
+                reader.start();
+                connection.writer.start();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Error accepting framed connection: " + e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    /** Stops accepting and closes every connection once the acks already queued are sent, a connection whose client
+     * doesn't take them within CLOSE_FLUSH_MILLIS is closed regardless.
+     * Documents still being written are not acked, clients resend them.
+     * */
+    void close() {
+        closed = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.warn("Error closing framed listener: " + e.getLocalizedMessage());
+        }
+        for (Connection connection : connections) {
+            connection.finish();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_FLUSH_MILLIS;
+        for (Connection connection : connections) {
+            try {
+                connection.writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connection.close();
+        }
+    }
+
+    /** Queued by finish, never written. */
+    private static final Frame END = new Frame(Frame.ACK, -1, new byte[0]);
+
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        /** Every document up to and including this has been handled, starts just before the first seq the client sent. Guarded by this. */
+        private long contiguous = -1;
+        /** Handled documents beyond a gap. Guarded by this. */
+        private final TreeSet<Long> completedAhead = new TreeSet<>();
+        private long acked;
+        /** Acks and rejects in the order they were decided, written by writeLoop. */
+        private final LinkedBlockingQueue<Frame> outbound = new LinkedBlockingQueue<>();
+        private final Thread writer;
+        /** Only used by the reader thread. */
+        private final DictionaryEncoding.Decoder decoder;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.decoder = new DictionaryEncoding.Decoder(jsonServer.getKeys());
+            this.writer = new Thread(this::writeLoop, "JsonServer-framed-acks-" + channel.socket().getRemoteSocketAddress());
+            this.writer.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Frame frame;
+                while ((frame = Frame.read(channel, (int) Math.min(Frame.MAX_FRAME_BYTES, jsonServer.getAdmission().getMaxBodyBytes()))) != null) {
+                    if (frame.getType() == Frame.DEFINE_KEYS) {
+                        if (frame.isOversized()) {
+                            throw new IOException("Key definitions larger than maxBodyBytes from client: " + frame);
+                        }
+                        decoder.define(frame.getPayload());
+                    } else if (frame.getType() == Frame.DOCUMENT || frame.getType() == Frame.ENCODED_DOCUMENT) {
+                        receive(frame);
+                    } else {
+                        throw new IOException("Unexpected frame from client: " + frame);
+                    }
+                }
+                log.debug("Framed connection closed by client " + channel.getRemoteAddress());
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Framed connection failed: " + e.getLocalizedMessage());
+                }
+            } finally {
+                finish();
+            }
+        }
+
+        private void receive(Frame frame) throws IOException {
+            long seq = frame.getSeq();
+            synchronized (this) {
+                if (contiguous < 0) {
+                    // a client that reconnects carries on counting where it left off
+                    contiguous = seq - 1;
+                    acked = contiguous;
+                }
+            }
+            if (frame.isOversized()) {
+                log.warn("Rejecting framed document " + seq + " from " + channel.socket().getRemoteSocketAddress() + ", it is larger than maxBodyBytes");
+                jsonServer.getAdmission().countTooLarge();
+                completed(seq, Frame.TOO_LARGE, "document is larger than " + jsonServer.getAdmission().getMaxBodyBytes() + " bytes");
+                return;
+            }
+            if (!jsonServer.enter()) {
+                log.debug("Rejecting framed document " + seq + ", server is draining");
+                completed(seq, Frame.REJECT, "server is draining");
+                return;
+            }
+            long bytes = frame.getPayload().length;
+            if (!jsonServer.getAdmission().admit(bytes)) {
+                log.warn("Rejecting framed document " + seq + ", in flight bytes budget is used up");
+                completed(seq, Frame.REJECT, "server is overloaded");
+                jsonServer.exit();
+                return;
+            }
+            CompletableFuture<Void> written;
+            try {
+                if (frame.getType() == Frame.ENCODED_DOCUMENT) {
+                    DictionaryEncoding.Decoded document = decodeOrRelease(frame.getPayload(), bytes);
+                    log.info("Received framed encoded document from " + document.getSourceFile() + " with " + document.getValues().size() + " keys");
+                    written = jsonServer.submitDocument(document.getSourceFile(), document.getValues(), null, bytes);
+                } else {
+                    String jsonRequest = new String(frame.getPayload(), StandardCharsets.UTF_8);
+                    log.info("Received framed JSON request: " + jsonRequest);
+                    written = jsonServer.submitJson(new JSONObject(jsonRequest), null, bytes);
+                }
+            } catch (JSONException err) {
+                // same as http, a document that isn't json is logged and acknowledged so the client doesn't retry it forever
+                log.error("Error building JSON from framed document " + seq + ": " + err.getLocalizedMessage());
+                written = CompletableFuture.completedFuture(null);
+            } catch (RuntimeException e) {
+                written = CompletableFuture.failedFuture(e);
+            }
+            written.whenComplete((ignored, failure) -> {
+                jsonServer.getAdmission().release(bytes);
+                try {
+                    completed(seq, Frame.REJECT, failure == null ? null : String.valueOf(failure.getLocalizedMessage()));
+                } finally {
+                    jsonServer.exit();
+                }
+            });
+        }
+
+        private DictionaryEncoding.Decoded decodeOrRelease(byte[] payload, long bytes) throws IOException {
+            try {
+                return decoder.decode(payload);
+            } catch (IOException e) {
+                jsonServer.getAdmission().release(bytes);
+                jsonServer.exit();
+                throw e;
+            }
+        }
+
+        /** Records seq as handled, rejecting it first with rejectType if there is a rejectReason, and acks if that closed a gap.
+         * Called from writer lanes, so the frames are only queued for writeLoop.
+         * */
+        private synchronized void completed(long seq, byte rejectType, String rejectReason) {
+            if (rejectReason != null) {
+                outbound.add(new Frame(rejectType, seq, rejectReason.getBytes(StandardCharsets.UTF_8)));
+            }
+            completedAhead.add(seq);
+            while (completedAhead.remove(contiguous + 1)) {
+                contiguous++;
+            }
+            if (contiguous > acked) {
+                outbound.add(new Frame(Frame.ACK, contiguous, new byte[0]));
+                acked = contiguous;
+            }
+        }
+
+        /** Has writeLoop close the connection once it has sent everything queued so far. */
+        void finish() {
+            outbound.add(END);
+        }
+
+        /** Writes queued frames until the connection closes or finish was called. Of the acks queued meanwhile only the last
+         * is written, after every reject queued before it, since it covers the earlier ones.
+         * */
+        void writeLoop() {
+            List<Frame> batch = new ArrayList<>();
+            try {
+                boolean finished = false;
+                while (!finished && channel.isOpen()) {
+                    Frame first = outbound.poll(WRITER_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    outbound.drainTo(batch);
+                    Frame lastAck = null;
+                    for (Frame frame : batch) {
+                        if (frame == END) {
+                            finished = true;
+                            break;
+                        } else if (frame.getType() == Frame.ACK) {
+                            lastAck = frame;
+                        } else {
+                            frame.write(channel);
+                        }
+                    }
+                    if (lastAck != null) {
+                        lastAck.write(channel);
+                    }
+                    batch.clear();
+                }
+                close();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Could not acknowledge framed documents: " + e.getLocalizedMessage());
+                }
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Error closing framed connection: " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
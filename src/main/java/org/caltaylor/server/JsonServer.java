@@ -3,137 +3,643 @@ package org.caltaylor.server;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.Headers;
+import org.caltaylor.common.ConfigWatcher;
+import org.caltaylor.common.CorrelationId;
+import org.caltaylor.common.DocumentDelta;
+import org.caltaylor.common.SymbolTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
+
+/** JsonServer accepts filtered maps as json and writes each one to a file named after its sourceFile.
+ * Instances are created with {@link #builder()} or {@link #fromConfigDir(String)}, started with {@link #start()}
+ * and stopped without losing in-flight uploads with {@link #drain(Duration)}.
+ * Several instances can run in one JVM as long as they use different ports, port 0 picks a free one.
+ * A server built from a config dir watches its config file and applies thread count, output path
+ * and coalesce window changes while running.
+ * Besides http, a server given a framedPort also takes documents over long lived TCP connections,
+ * see {@link FramedListener}.
+ * Upload sizes, the bytes held by uploads in flight and slow uploads are bounded by {@link AdmissionControl}.
+ * Output older than archiveAfterMillis is moved into compressed bundles by {@link OutputCompactor},
+ * GET /output/&lt;sourceFile&gt; reads a file back wherever it is.
+ * With keyIndex on, the files holding a key or value are found with GET /index, see {@link KeyIndex}.
+ * */
 public class JsonServer {
 
     private static final Logger log = LoggerFactory.getLogger(JsonServer.class);
-    private static HttpServer server;
-    private static ExecutorService executorService;
     private static final String configFileName = "arcticwolfscannerserver.properties";
-    private static String outputPath = "";
-    private static final int numberOfThreads = 10; //arbitrary, but 1 is sufficient at this point.
+    private static final int defaultNumberOfThreads = 10; //arbitrary, but 1 is sufficient at this point.
     private static final String contextPath = "/json";
+    private static final String outputContextPath = "/output/";
+    private static final String indexContextPath = "/index";
+    private static final int defaultIndexQueryLimit = 1000;
+    private static final int defaultWriterLanes = 4;
+    private static final Duration stopServerTimeout = Duration.ofSeconds(60);
+    private static final long defaultMaxBodyBytes = 1024 * 1024;
+    private static final long defaultMaxInFlightBytes = 64 * 1024 * 1024;
+    private static final long defaultReadTimeoutMillis = 30_000;
+    private static final long defaultArchiveBytesPerSecond = 4 * 1024 * 1024;
+    private static final long defaultArchiveIntervalMillis = 60_000;
+    private static final long defaultIndexSnapshotIntervalMillis = 60_000;
+    /** How long past readTimeoutMillis a body read that got no bytes at all is left before its connection is closed,
+     * so a client that trickles still gets its 408 from AdmissionControl.
+     * */
+    private static final long stalledReadGraceMillis = 1000;
+    /** The instance started by main, so that stopServer can find it. */
+    private static JsonServer mainServer;
+
+    private final int requestedPort;
+    private volatile String outputPath;
+    private volatile int numberOfThreads;
+    private final int laneCount;
+    private final int requestedFramedPort;
+    private final AdmissionControl admission;
+    /** Canonical key strings, so documents waiting in the lanes share one copy of each recurring key. */
+    private final SymbolTable keys = new SymbolTable();
+    /** Null unless built with keyIndex on. */
+    private final KeyIndex keyIndex;
+    private volatile long coalesceWindowMillis;
+    private volatile long archiveAfterMillis;
+    private volatile long archiveBytesPerSecond;
+    private volatile long archiveIntervalMillis;
+    private Path configFile;
+    private Properties loadedConfig;
+
+    private HttpServer server;
+    private FramedListener framedListener;
+    private ThreadPoolExecutor executorService;
+    /** Closes the connections of uploads whose body stopped arriving, see {@link #cutOffIfStalled}. */
+    private ScheduledThreadPoolExecutor readWatchdog;
+    private ConfigWatcher configWatcher;
+    private WriterLanes writerLanes;
+    private OutputCompactor compactor;
+    private CompletableFuture<JsonServer> started;
+    private volatile boolean accepting;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object inFlightMonitor = new Object();
+
+    private JsonServer(Builder builder) {
+        this.requestedPort = builder.port;
+        this.outputPath = builder.outputPath;
+        this.numberOfThreads = builder.numberOfThreads;
+        this.laneCount = builder.writerLanes;
+        this.requestedFramedPort = builder.framedPort;
+        this.admission = new AdmissionControl(builder.maxBodyBytes, builder.maxInFlightBytes, builder.readTimeoutMillis);
+        this.coalesceWindowMillis = builder.coalesceWindowMillis;
+        this.archiveAfterMillis = builder.archiveAfterMillis;
+        this.archiveBytesPerSecond = builder.archiveBytesPerSecond;
+        this.archiveIntervalMillis = builder.archiveIntervalMillis;
+        this.keyIndex = builder.keyIndex ? new KeyIndex(keys, builder.indexSnapshotIntervalMillis) : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     public static void main(String[] args) throws IOException {
         if(args == null){
             throw new NullPointerException("Parameter to JsonServer must be a directory that can be created.");
         }
-        String configFilePath = args[0];
+        JsonServer jsonServer = fromConfigDir(args[0]);
+        try {
+            jsonServer.start().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while starting server", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Could not start server", e.getCause());
+        }
+        synchronized (JsonServer.class) {
+            mainServer = jsonServer;
+        }
+    }
+
+    /** Builds a server from the arcticwolfscannerserver.properties file found in configFilePath. */
+    public static JsonServer fromConfigDir(String configFilePath) {
         log.info("Looking in configFilePath="+configFilePath + " for config file.");
 
-        int port = 8080;
-        String configPath;
         if(configFilePath == null){
             throw new NullPointerException("Parameter to JsonServer must be a directory that can be created.");
         }
         if(configFilePath.isEmpty()){
             throw new IllegalArgumentException("Parameter to JsonServer must be a directory that can be created.");
         }
-        configPath = configFilePath + File.separator + configFileName;
+        String configPath = configFilePath + File.separator + configFileName;
         File configFile = new File(configPath);
         if (!configFile.exists()){
             throw new IllegalArgumentException("Parameter to JsonServer must be a directory that can be created. Could not find "+ configPath);
-        } else {
-            Properties prop = new Properties();
-            try {
-                log.info("Loading properties from config file: "+configFile.getPath());
-                FileInputStream input = new FileInputStream(configFile.getPath());
-                prop.load(input);
+        }
+        Properties prop;
+        try {
+            log.info("Loading properties from config file: "+configFile.getPath());
+            prop = ConfigWatcher.load(configFile.toPath());
+        }
+        catch (IOException ioe) {
+            log.error("Error reading properties from config file "+ configFile.getAbsolutePath(), ioe);
+            throw new IllegalArgumentException("Parameter to JsonServer must be a directory that can be created. Error reading properties from config file "+ configPath +" message");
+        }
 
-                //get the property values and override default
-                port = Integer.parseInt(prop.getProperty("port"));
-                String tempOutputPath = prop.getProperty("outputPath");
-                if (tempOutputPath != null && !tempOutputPath.isEmpty())
-                    outputPath = tempOutputPath;
-            }
-            catch (IOException ioe) {
-                log.error("Error reading properties from config file "+ configFile.getAbsolutePath(), ioe);
-                throw new IllegalArgumentException("Parameter to JsonServer must be a directory that can be created. Error reading properties from config file "+ configPath +" message");
+        JsonServer jsonServer = builderFromProperties(prop).build();
+        jsonServer.configFile = configFile.toPath();
+        jsonServer.loadedConfig = prop;
+
+        log.debug("outputPath = "+jsonServer.outputPath);
+        if (!jsonServer.createOutputPath()) {
+            log.error("Properties file "+ configPath +" referenced an output path that generated an error when creating: outputPath="+jsonServer.outputPath);
+            throw new IllegalArgumentException("Properties file "+ configPath +" referenced an output path that generated an error when creating: outputPath="+jsonServer.outputPath);
+        }
+        return jsonServer;
+    }
+
+    private static Builder builderFromProperties(Properties prop) {
+        //get the property values and override default
+        Builder builder = builder().port(Integer.parseInt(prop.getProperty("port")));
+        String tempOutputPath = prop.getProperty("outputPath");
+        if (tempOutputPath != null && !tempOutputPath.isEmpty())
+            builder.outputPath(tempOutputPath);
+        builder.threads(Integer.parseInt(prop.getProperty("threads", String.valueOf(defaultNumberOfThreads))));
+        builder.writerLanes(Integer.parseInt(prop.getProperty("writerLanes", String.valueOf(defaultWriterLanes))));
+        builder.coalesceWindowMillis(Long.parseLong(prop.getProperty("coalesceWindowMillis", "0")));
+        builder.framedPort(Integer.parseInt(prop.getProperty("framedPort", "-1")));
+        builder.maxBodyBytes(Long.parseLong(prop.getProperty("maxBodyBytes", String.valueOf(defaultMaxBodyBytes))));
+        builder.maxInFlightBytes(Long.parseLong(prop.getProperty("maxInFlightBytes", String.valueOf(defaultMaxInFlightBytes))));
+        builder.readTimeoutMillis(Long.parseLong(prop.getProperty("readTimeoutMillis", String.valueOf(defaultReadTimeoutMillis))));
+        builder.archiveAfterMillis(Long.parseLong(prop.getProperty("archiveAfterMillis", "0")));
+        builder.archiveBytesPerSecond(Long.parseLong(prop.getProperty("archiveBytesPerSecond", String.valueOf(defaultArchiveBytesPerSecond))));
+        builder.archiveIntervalMillis(Long.parseLong(prop.getProperty("archiveIntervalMillis", String.valueOf(defaultArchiveIntervalMillis))));
+        builder.keyIndex(Boolean.parseBoolean(prop.getProperty("keyIndex", "false")));
+        builder.indexSnapshotIntervalMillis(Long.parseLong(prop.getProperty("indexSnapshotIntervalMillis", String.valueOf(defaultIndexSnapshotIntervalMillis))));
+        return builder;
+    }
+
+    private boolean createOutputPath() {
+        return createOutputPath(outputPath);
+    }
+
+    private static boolean createOutputPath(String outputPath) {
+        if (outputPath.isEmpty()) {
+            return true;
+        }
+        File outputPathDir = new File(outputPath);
+        return outputPathDir.exists() || outputPathDir.mkdirs();
+    }
+
+    /** Applies changed settings to a running server without dropping requests.
+     * Everything is validated before anything is changed, so a bad value leaves the server as it was.
+     * The request thread pool is resized in place, new uploads go to the new output path while uploads
+     * already being written finish in the old one, archiving settings apply from the compactor's next run.
+     * Port, framedPort, writerLanes and keyIndex only change on restart.
+     * */
+    public synchronized void reconfigure(Properties prop) {
+        Builder updated = builderFromProperties(prop);
+        updated.validate();
+        if (!createOutputPath(updated.outputPath)) {
+            throw new IllegalArgumentException("Could not create output directory: " + updated.outputPath);
+        }
+        if (updated.port != requestedPort) {
+            log.warn("port changed to " + updated.port + ", keep listening on " + getPort() + " until restarted");
+        }
+        if (updated.framedPort != requestedFramedPort) {
+            log.warn("framedPort changed to " + updated.framedPort + ", keep " + requestedFramedPort + " until restarted");
+        }
+        if (updated.writerLanes != laneCount) {
+            log.warn("writerLanes changed to " + updated.writerLanes + ", keep " + laneCount + " lanes until restarted");
+        }
+        if (updated.keyIndex != (keyIndex != null)) {
+            log.warn("keyIndex changed to " + updated.keyIndex + ", keep " + (keyIndex != null) + " until restarted");
+        }
+
+        if (executorService != null && updated.numberOfThreads != numberOfThreads) {
+            // grow the maximum first and shrink the core first, so core never exceeds max
+            if (updated.numberOfThreads > executorService.getMaximumPoolSize()) {
+                executorService.setMaximumPoolSize(updated.numberOfThreads);
+                executorService.setCorePoolSize(updated.numberOfThreads);
+            } else {
+                executorService.setCorePoolSize(updated.numberOfThreads);
+                executorService.setMaximumPoolSize(updated.numberOfThreads);
             }
         }
+        numberOfThreads = updated.numberOfThreads;
+        outputPath = updated.outputPath;
+        coalesceWindowMillis = updated.coalesceWindowMillis;
+        if (writerLanes != null) {
+            writerLanes.setCoalesceWindowMillis(coalesceWindowMillis);
+        }
+        admission.setLimits(updated.maxBodyBytes, updated.maxInFlightBytes, updated.readTimeoutMillis);
+        archiveAfterMillis = updated.archiveAfterMillis;
+        archiveBytesPerSecond = updated.archiveBytesPerSecond;
+        archiveIntervalMillis = updated.archiveIntervalMillis;
+        if (compactor != null) {
+            compactor.setLimits(archiveAfterMillis, archiveBytesPerSecond, archiveIntervalMillis);
+        }
+        if (keyIndex != null && updated.keyIndex) {
+            keyIndex.setSnapshotIntervalMillis(updated.indexSnapshotIntervalMillis);
+        }
+        log.info("Reconfigured server on port " + getPort() + ", threads=" + numberOfThreads + " outputPath=" + outputPath
+                + " coalesceWindowMillis=" + coalesceWindowMillis + " maxBodyBytes=" + admission.getMaxBodyBytes()
+                + " archiveAfterMillis=" + archiveAfterMillis);
+    }
 
-        log.debug("outputPath = "+outputPath);
+    public int getThreads() {
+        return numberOfThreads;
+    }
 
-        if (!outputPath.isEmpty()) {
-            File outputPathDir = new File(outputPath);
-            if (!outputPathDir.exists()) {
-                if (!outputPathDir.mkdirs()) {
-                    log.error("Properties file "+ configPath +" referenced an output path that generated an error when creating: outputPath="+outputPath);
-                    throw new IllegalArgumentException("Properties file "+ configPath +" referenced an output path that generated an error when creating: outputPath="+outputPath);
-                }
+    /** Binds the port and starts serving in the background.
+     * The returned future completes with this server as soon as it is ready to take requests,
+     * or exceptionally if the port could not be bound. Calling start again returns the same future.
+     * */
+    public synchronized CompletableFuture<JsonServer> start() {
+        if (started != null) {
+            return started;
+        }
+        started = new CompletableFuture<>();
+        Thread starter = new Thread(() -> {
+            try {
+                bind();
+                started.complete(this);
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not start server on port " + requestedPort + ": " + e.getLocalizedMessage(), e);
+                started.completeExceptionally(e);
             }
+        }, "JsonServer-start-" + requestedPort);
+        starter.start();
+        return started;
+    }
+
+    private synchronized void bind() throws IOException {
+        if (!createOutputPath()) {
+            throw new IOException("Could not create output directory: " + outputPath);
+        }
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(requestedPort), 0);
+        writerLanes = new WriterLanes(laneCount, coalesceWindowMillis, this::writeDocument);
+        compactor = new OutputCompactor(() -> outputPath, writerLanes, archiveAfterMillis, archiveBytesPerSecond, archiveIntervalMillis);
+        if (keyIndex != null && !outputPath.isEmpty()) {
+            // before taking uploads, so nothing written now is overwritten in the index by what the files held before
+            try {
+                keyIndex.load(Path.of(outputPath), compactor);
+            } catch (IOException | RuntimeException e) {
+                httpServer.stop(0);
+                writerLanes.close();
+                throw e;
+            }
+        }
+        httpServer.createContext(contextPath, new JsonHandler(this));
+        httpServer.createContext(outputContextPath, new OutputHandler(this));
+        if (keyIndex != null) {
+            httpServer.createContext(indexContextPath, new IndexHandler(this));
+        }
+        executorService = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        httpServer.setExecutor(executorService);
+        if (requestedFramedPort >= 0) {
+            try {
+                framedListener = new FramedListener(this, requestedFramedPort);
+            } catch (IOException e) {
+                httpServer.stop(0);
+                executorService.shutdown();
+                writerLanes.close();
+                throw e;
+            }
+        }
+        readWatchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "JsonServer-read-watchdog-" + requestedPort);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // nearly every read finishes in time, cancelled checks shouldn't pile up for readTimeoutMillis
+        readWatchdog.setRemoveOnCancelPolicy(true);
+        accepting = true;
+        httpServer.start();
+        server = httpServer;
+        if (framedListener != null) {
+            framedListener.start();
+        }
+        if (configFile != null) {
+            configWatcher = new ConfigWatcher(configFile, loadedConfig, this::reconfigure);
+            configWatcher.start();
+        }
+        compactor.start();
+        if (keyIndex != null) {
+            keyIndex.start(() -> outputPath);
         }
 
-        server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext(contextPath, new JsonHandler());
-        executorService = Executors.newFixedThreadPool(numberOfThreads);
-        server.setExecutor(executorService);
-        server.start();
+        log.info("Server is running on port "+ getPort() + ", writing uploaded files to " + outputPath);
+    }
 
-        log.info("Server is running on port "+ port + ", writing uploaded files to " + outputPath);
+    /** The port the server is listening on, only meaningful once start has completed. */
+    public int getPort() {
+        HttpServer httpServer = server;
+        return httpServer == null ? requestedPort : httpServer.getAddress().getPort();
     }
 
-    public static void stopServer(){
-        if(server != null) {
-            server.stop(0);
+    /** The port taking framed TCP connections, -1 if the framed transport is off. Only meaningful once start has completed. */
+    public int getFramedPort() {
+        FramedListener listener = framedListener;
+        return listener == null ? requestedFramedPort : listener.getPort();
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public boolean isAccepting() {
+        return accepting;
+    }
+
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    SymbolTable getKeys() {
+        return keys;
+    }
+
+    OutputCompactor getCompactor() {
+        return compactor;
+    }
+
+    /** The key index, null unless built with keyIndex on. */
+    KeyIndex getKeyIndex() {
+        return keyIndex;
+    }
+
+    /** The output file written for sourceFile, whether still loose in the output path or archived, null if there is none. */
+    byte[] readOutput(String sourceFile) throws IOException {
+        OutputCompactor current;
+        synchronized (this) {
+            current = compactor;
+        }
+        if (current == null) {
+            throw new IOException("Server is not running");
+        }
+        return current.read(sourceFile);
+    }
+
+    /** Stops taking new uploads, lets every upload already being handled finish writing, then releases the port and threads.
+     * Uploads arriving while draining are answered with 503 so clients can fail over.
+     * @return true if everything in flight completed before the timeout.
+     * */
+    public boolean drain(Duration timeout) {
+        HttpServer httpServer;
+        synchronized (this) {
+            httpServer = server;
+            if (httpServer == null) {
+                log.info("Server wasn't running");
+                return true;
+            }
+            server = null;
+            if (configWatcher != null) {
+                configWatcher.close();
+                configWatcher = null;
+            }
+            // an archive run in progress is cut short, the bundle it was writing is removed on the next start
+            compactor.close();
+        }
+        if (keyIndex != null) {
+            keyIndex.close();
+        }
+        accepting = false;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        boolean drained = true;
+        try {
+            drained = awaitInFlight(deadline);
+            if (!drained) {
+                log.warn("Server drain timed out with " + inFlight.get() + " uploads in flight");
+            }
+            httpServer.stop(0);
+            closeFramedListener();
             executorService.shutdown(); // Disable new tasks from being submitted
+            // Wait for existing tasks to terminate
+            if (!executorService.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                drained = false;
+                executorService.shutdownNow(); // tired of waiting, make it so!
+                log.error("JsonServer thread pool did not terminate");
+            }
+            readWatchdog.shutdownNow();
+            // request threads are done, so this only flushes what they left queued
+            if (!writerLanes.drain(TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadline)))) {
+                drained = false;
+            }
+            snapshotKeyIndex();
+            log.info("Server on port " + httpServer.getAddress().getPort() + " stopped, drained=" + drained);
+        } catch (InterruptedException ie) {
+            // (Re-)Cancel if current thread also interrupted
+            httpServer.stop(0);
+            closeFramedListener();
+            executorService.shutdownNow();
+            readWatchdog.shutdownNow();
+            writerLanes.close();
+            // Preserve interrupt status
+            log.warn("Server stopped, throwing interrupted exception");
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        return drained;
+    }
+
+    /** Takes a last snapshot once the lanes are done, so a clean restart has no output files to read again. */
+    private void snapshotKeyIndex() {
+        String path = outputPath;
+        if (keyIndex != null && !path.isEmpty()) {
             try {
-                // Wait for existing tasks to terminate
-                if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executorService.shutdownNow(); // tired of waiting, make it so!
-                    // Wait a while for tasks to respond to being cancelled
-                    if (!executorService.awaitTermination(60, TimeUnit.SECONDS))
-                        log.error("JsonServer thread pool did not terminate");
-                }
-                log.info("Server stopped");
-            } catch (InterruptedException ie) {
-                // (Re-)Cancel if current thread also interrupted
-                executorService.shutdownNow();
-                // Preserve interrupt status
-                log.warn("Server stopped, throwing interrupted exception");
-                Thread.currentThread().interrupt();
+                keyIndex.snapshot(Path.of(path));
+            } catch (IOException e) {
+                log.error("Could not write key index snapshot on shutdown, the next start reads the output files again: " + e.getLocalizedMessage(), e);
             }
-            server = null;
+        }
+    }
+
+    private synchronized void closeFramedListener() {
+        if (framedListener != null) {
+            framedListener.close();
+            framedListener = null;
+        }
+    }
+
+    private boolean awaitInFlight(long deadline) throws InterruptedException {
+        synchronized (inFlightMonitor) {
+            while (inFlight.get() > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadline));
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                inFlightMonitor.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /** Drains the server started by main. */
+    public static void stopServer(){
+        JsonServer jsonServer;
+        synchronized (JsonServer.class) {
+            jsonServer = mainServer;
+            mainServer = null;
+        }
+        if (jsonServer != null) {
+            jsonServer.drain(stopServerTimeout);
         } else {
             log.info("Server wasn't running");
         }
     }
 
+    /** Counts an upload as in flight, false if the server is draining and the upload must be refused. Every true must be paired with exit. */
+    boolean enter() {
+        inFlight.incrementAndGet();
+        if (!accepting) {
+            exit();
+            return false;
+        }
+        return true;
+    }
+
+    void exit() {
+        if (inFlight.decrementAndGet() == 0 && !accepting) {
+            synchronized (inFlightMonitor) {
+                inFlightMonitor.notifyAll();
+            }
+        }
+    }
+
+    /** Closes the exchange's connection if its body is still being read stalledReadGraceMillis after the read timeout,
+     * which is the only way to unblock a read from a client that stopped sending altogether.
+     * AdmissionControl only notices a slow client between the bytes it does send.
+     * The timeout is read per upload, so a reloaded readTimeoutMillis applies to the next one.
+     * @return the check, to be cancelled once the body has been read.
+     * */
+    private ScheduledFuture<?> cutOffIfStalled(HttpExchange exchange, String correlationId) {
+        long readTimeoutMillis = admission.getReadTimeoutMillis();
+        return readWatchdog.schedule(() -> {
+            log.warn("Closing upload from " + exchange.getRemoteAddress() + " correlationId=" + correlationId + ", its body is still incomplete past the " + readTimeoutMillis + "ms read timeout");
+            admission.countTimedOut();
+            // before the response is started this closes the connection, failing the read blocked on it
+            exchange.close();
+        }, readTimeoutMillis + stalledReadGraceMillis, TimeUnit.MILLISECONDS);
+    }
+
     static class JsonHandler implements HttpHandler {
+        private final JsonServer jsonServer;
+
+        JsonHandler(JsonServer jsonServer) {
+            this.jsonServer = jsonServer;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            // every answer tells the client it may send deltas, see DocumentDelta
+            exchange.getResponseHeaders().set(DocumentDelta.SUPPORTED_HEADER, "1");
+            if (!jsonServer.enter()) {
+                log.debug("Rejecting request, server is draining");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            try {
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    // a client's health check, answered without reading anything
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                handleUpload(exchange);
+            } finally {
+                jsonServer.exit();
+            }
+        }
 
-            InputStream requestBody = exchange.getRequestBody();
-
-            // Read the JSON data from the input stream
-            StringBuilder requestStringBuilder = new StringBuilder();
-            int nextByte;
-            while ((nextByte = requestBody.read()) != -1) {
-                requestStringBuilder.append((char) nextByte);
+        private void handleUpload(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            ServerEvents.UploadReceived received = new ServerEvents.UploadReceived();
+            received.begin();
+            Headers headers = exchange.getRequestHeaders();
+            String correlationId = CorrelationId.fromHeader(headers == null ? null : headers.getFirst(CorrelationId.HEADER));
+            // Read the JSON data from the input stream, within the size, budget and time limits
+            AdmissionControl.Body body;
+            ScheduledFuture<?> stalled = jsonServer.cutOffIfStalled(exchange, correlationId);
+            try {
+                try {
+                    body = jsonServer.admission.readBody(exchange.getRequestBody(), contentLength(exchange), start);
+                } finally {
+                    stalled.cancel(false);
+                }
+            } catch (AdmissionControl.Rejected rejected) {
+                log.warn("Rejecting upload from " + exchange.getRemoteAddress() + " with " + rejected.getStatus() + ": " + rejected.getMessage());
+                if (rejected.getStatus() == 503) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+                exchange.sendResponseHeaders(rejected.getStatus(), -1);
+                exchange.close();
+                return;
             }
 
-            // Convert the JSON data to a String
-            String jsonRequest = requestStringBuilder.toString();
-            log.info("Received JSON request: " + jsonRequest);
+            try (body) {
+                // Convert the JSON data to a String
+                String jsonRequest = new String(body.getBytes(), StandardCharsets.UTF_8);
+                log.info("Received JSON request: " + jsonRequest + " correlationId=" + correlationId);
 
-            try {
-                JSONObject jsonObject = new JSONObject(requestStringBuilder.toString());
-                processJson(jsonObject);
-            }catch (JSONException err){
-                log.error("Error building JSON from string '"+requestStringBuilder.toString()+"'");
+                try {
+                    JSONObject jsonObject = new JSONObject(jsonRequest);
+                    received.end();
+                    if (received.shouldCommit()) {
+                        received.correlationId = correlationId;
+                        received.sourceFile = jsonObject.optString("sourceFile", null);
+                        received.bytes = body.getBytes().length;
+                        received.keyCount = Math.max(0, jsonObject.length() - 1);
+                        received.commit();
+                    }
+                    String deltaBase = headers == null ? null : headers.getFirst(DocumentDelta.BASE_HEADER);
+                    if (deltaBase != null) {
+                        int status = jsonServer.processPatch(jsonObject, deltaBase, headers.getFirst(DocumentDelta.VERSION_HEADER), correlationId);
+                        if (status != 200) {
+                            exchange.sendResponseHeaders(status, -1);
+                            exchange.close();
+                            return;
+                        }
+                    } else {
+                        processJson(jsonObject, correlationId, body.getBytes().length);
+                    }
+                }catch (JSONException err){
+                    log.error("Error building JSON from string '"+jsonRequest+"'");
+                } catch (IOException e) {
+                    // answered rather than thrown, so the client fails over at once and the connection stays usable
+                    log.error("Error storing upload correlationId=" + correlationId + ": " + e.getLocalizedMessage(), e);
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
             }
 
             // Send a response back to the client
@@ -145,29 +651,461 @@ public class JsonServer {
             log.debug("Sent JSON successfully received message.");
         }
 
-        void processJson(JSONObject jsonObject) throws IOException {
-            log.debug("Processing JSON: "+ jsonObject);
+        private static long contentLength(HttpExchange exchange) {
+            Headers headers = exchange.getRequestHeaders();
+            String header = headers == null ? null : headers.getFirst("Content-Length");
+            if (header == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /** Hands the document to the writer lane that owns its sourceFile and waits until it is on disk. */
+        void processJson(JSONObject jsonObject, String correlationId, long bytes) throws IOException {
             String sourceFile = jsonObject.getString("sourceFile");
+            try {
+                jsonServer.submitJson(jsonObject, correlationId, bytes).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + sourceFile + " to be written", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error writing " + sourceFile, e.getCause());
+            }
+        }
+    }
+
+    /** OutputHandler serves GET /output/&lt;sourceFile&gt;, the file as written, 404 if there is none. */
+    static class OutputHandler implements HttpHandler {
+        private final JsonServer jsonServer;
+
+        OutputHandler(JsonServer jsonServer) {
+            this.jsonServer = jsonServer;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "GET");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                if (!jsonServer.enter()) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                try {
+                    String sourceFile = exchange.getRequestURI().getPath().substring(outputContextPath.length());
+                    byte[] contents = jsonServer.readOutput(sourceFile);
+                    if (contents == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, contents.length == 0 ? -1 : contents.length);
+                    exchange.getResponseBody().write(contents);
+                } catch (IOException e) {
+                    log.error("Error reading output " + exchange.getRequestURI() + ": " + e.getLocalizedMessage(), e);
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    jsonServer.exit();
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /** IndexHandler answers lookups in the {@link KeyIndex} with json, each list of sourceFiles sorted.
+     * GET /index?key=K&amp;value=V gives the files holding K = V, ?key=K every value of K with its files
+     * and ?value=V every key holding V with its files. At most limit files are listed, 1000 unless given,
+     * and truncated says whether some were left out.
+     * */
+    static class IndexHandler implements HttpHandler {
+        private final JsonServer jsonServer;
+
+        IndexHandler(JsonServer jsonServer) {
+            this.jsonServer = jsonServer;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "GET");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                String key = query.get("key");
+                String value = query.get("value");
+                int limit;
+                try {
+                    limit = Integer.parseInt(query.getOrDefault("limit", String.valueOf(defaultIndexQueryLimit)));
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if ((key == null && value == null) || limit < 1) {
+                    byte[] usage = "Query with key, value or both, and optionally a positive limit".getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(400, usage.length);
+                    exchange.getResponseBody().write(usage);
+                    return;
+                }
+                byte[] response = lookup(jsonServer.keyIndex, key, value, limit).toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            } finally {
+                exchange.close();
+            }
+        }
 
-            File sourceProperties = new File(outputPath + File.separator + sourceFile);
-            File outputPathFile = new File(outputPath);
-            if (!outputPathFile.exists() && !outputPathFile.mkdirs()){
-                log.error("Could not create output directory: "+ outputPath);
+        static JSONObject lookup(KeyIndex index, String key, String value, int limit) {
+            JSONObject result = new JSONObject();
+            int[] remaining = {limit};
+            if (key != null && value != null) {
+                result.put("key", key).put("value", value);
+                result.put("sourceFiles", take(index.find(key, value), remaining));
+            } else if (key != null) {
+                result.put("key", key);
+                result.put("values", takeAll(index.findKey(key), remaining));
+            } else {
+                result.put("value", value);
+                result.put("keys", takeAll(index.findValue(value, limit), remaining));
             }
-            if (outputPath.isEmpty()){
-                sourceProperties = new File(sourceFile);
+            result.put("truncated", remaining[0] < 0);
+            return result;
+        }
+
+        /** Lists files until remaining runs out, leaving it negative if some had to be left out. */
+        private static JSONArray take(SortedSet<String> files, int[] remaining) {
+            JSONArray taken = new JSONArray();
+            for (String file : files) {
+                if (remaining[0] == 0) {
+                    remaining[0] = -1;
+                    break;
+                }
+                if (remaining[0] < 0) {
+                    break;
+                }
+                taken.put(file);
+                remaining[0]--;
             }
-            PrintWriter writer = new PrintWriter(sourceProperties.getPath(), StandardCharsets.UTF_8);
-            Iterator<String> keys = jsonObject.keys();
-            while(keys.hasNext()) {
-                String key = keys.next();
-                if (!key.equals("sourceFile")) { //skip sourceFile key as it's used to set the name of the output file.
-                    writer.println("key = " + jsonObject.getString(key));
+            return taken;
+        }
+
+        private static JSONObject takeAll(SortedMap<String, SortedSet<String>> found, int[] remaining) {
+            JSONObject taken = new JSONObject();
+            for (Map.Entry<String, SortedSet<String>> entry : found.entrySet()) {
+                if (remaining[0] <= 0) {
+                    remaining[0] = -1;
+                    break;
                 }
+                taken.put(entry.getKey(), take(entry.getValue(), remaining));
             }
+            return taken;
+        }
 
-            writer.close();
-            log.debug("Processing JSON complete.  Wrote :"+ sourceProperties.getPath());
+        private static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> query = new LinkedHashMap<>();
+            if (rawQuery == null) {
+                return query;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    query.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+            return query;
+        }
+    }
+
+    /** Applies a delta upload, see {@link DocumentDelta}, on the writer lane that owns its sourceFile and waits until it is on disk.
+     * @return 200 once applied, 409 if the stored document isn't the base version or patching it doesn't make the new one,
+     * 400 if the headers or body aren't a delta.
+     * */
+    int processPatch(JSONObject jsonObject, String baseHeader, String versionHeader, String correlationId) throws IOException {
+        String sourceFile;
+        long baseVersion;
+        long version;
+        Map<String, String> changed = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        try {
+            sourceFile = jsonObject.getString(DocumentDelta.SOURCE_FILE_KEY);
+            baseVersion = DocumentDelta.fromHeader(baseHeader);
+            version = DocumentDelta.fromHeader(versionHeader == null ? "" : versionHeader);
+            JSONObject changedKeys = jsonObject.getJSONObject(DocumentDelta.CHANGED_KEY);
+            Iterator<String> changedNames = changedKeys.keys();
+            while (changedNames.hasNext()) {
+                String key = changedNames.next();
+                changed.put(keys.intern(key), changedKeys.getString(key));
+            }
+            JSONArray removedKeys = jsonObject.getJSONArray(DocumentDelta.REMOVED_KEY);
+            for (int i = 0; i < removedKeys.length(); i++) {
+                removed.add(removedKeys.getString(i));
+            }
+        } catch (JSONException | NumberFormatException e) {
+            log.warn("Rejecting malformed delta upload correlationId=" + correlationId + ": " + e.getLocalizedMessage());
+            return 400;
+        }
+        try {
+            if (submitPatch(sourceFile, baseVersion, version, changed, removed, correlationId).get()) {
+                return 200;
+            }
+            log.info("Delta for " + sourceFile + " doesn't match the stored version, asking for all of it correlationId=" + correlationId);
+            return 409;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + sourceFile + " to be written", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error writing " + sourceFile, e.getCause());
+        }
+    }
+
+    /** Patches the document stored for sourceFile on its writer lane, so no other write of it can come in between.
+     * The future completes with false, and nothing is written, if the versions don't match.
+     * */
+    CompletableFuture<Boolean> submitPatch(String sourceFile, long baseVersion, long version, Map<String, String> changed, List<String> removed,
+                                           String correlationId) {
+        CompletableFuture<Boolean> applied = new CompletableFuture<>();
+        writerLanes.execute(sourceFile, () -> {
+            try {
+                Map<String, String> stored = storedDocument(sourceFile);
+                if (stored == null || DocumentDelta.version(stored) != baseVersion) {
+                    applied.complete(false);
+                    return;
+                }
+                Map<String, String> patched = DocumentDelta.apply(stored, changed, removed);
+                if (DocumentDelta.version(patched) != version) {
+                    applied.complete(false);
+                    return;
+                }
+                // an unchanged file is left as it is rather than written again
+                if (!patched.equals(stored)) {
+                    writeDocument(sourceFile, stored, patched, correlationId);
+                }
+                applied.complete(true);
+            } catch (IOException | RuntimeException e) {
+                applied.completeExceptionally(e);
+            }
+        }).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                applied.completeExceptionally(failure);
+            }
+        });
+        return applied;
+    }
+
+    /** The document last written for sourceFile, read back from the output, loose or archived, null if there is none. */
+    private Map<String, String> storedDocument(String sourceFile) throws IOException {
+        byte[] contents = compactor.read(sourceFile);
+        return contents == null ? null : KeyIndex.parse(contents, keys);
+    }
+
+    /** Hands the document to the writer lane that owns its sourceFile, the future completes once it is on disk.
+     * @param bytes the size of the document as it was received, for the flight recorder.
+     * */
+    CompletableFuture<Void> submitJson(JSONObject jsonObject, String correlationId, long bytes) {
+        log.debug("Processing JSON: "+ jsonObject);
+        String sourceFile = jsonObject.getString("sourceFile");
+
+        Map<String, String> document = new LinkedHashMap<>();
+        Iterator<String> jsonKeys = jsonObject.keys();
+        while(jsonKeys.hasNext()) {
+            String key = jsonKeys.next();
+            if (!key.equals("sourceFile")) { //skip sourceFile key as it's used to set the name of the output file.
+                document.put(keys.intern(key), jsonObject.getString(key));
+            }
+        }
+        return submitDocument(sourceFile, document, correlationId, bytes);
+    }
+
+    /** Hands an already decoded document, without its sourceFile key, to the writer lane that owns sourceFile.
+     * @param correlationId the client's id for the file, null if it didn't send one.
+     * @param bytes the size of the document as it was received, for the flight recorder.
+     * */
+    CompletableFuture<Void> submitDocument(String sourceFile, Map<String, String> document, String correlationId, long bytes) {
+        ServerEvents.DocumentStored stored = new ServerEvents.DocumentStored();
+        if (!stored.isEnabled()) {
+            return writerLanes.submit(sourceFile, document, correlationId);
+        }
+        stored.begin();
+        return writerLanes.submit(sourceFile, document, correlationId).whenComplete((ignored, failure) -> {
+            stored.end();
+            if (stored.shouldCommit()) {
+                stored.correlationId = correlationId;
+                stored.sourceFile = sourceFile;
+                stored.bytes = bytes;
+                stored.keyCount = document.size();
+                stored.succeeded = failure == null;
+                stored.commit();
+            }
+        });
+    }
+
+    /** Writes one document to the output path, only ever called by the writer lane that owns sourceFile. */
+    void writeDocument(String sourceFile, Map<String, String> document, String correlationId) throws IOException {
+        // the key index keeps no documents, what the file held is read back to move it off its old postings
+        writeDocument(sourceFile, keyIndex == null ? null : storedDocument(sourceFile), document, correlationId);
+    }
+
+    /** @param previous what sourceFile holds now, only read when the key index is on. */
+    private void writeDocument(String sourceFile, Map<String, String> previous, Map<String, String> document, String correlationId) throws IOException {
+        ServerEvents.DocumentWritten written = new ServerEvents.DocumentWritten();
+        written.begin();
+        String outputPath = this.outputPath;
+        File sourceProperties = new File(outputPath + File.separator + sourceFile);
+        File outputPathFile = new File(outputPath);
+        if (!outputPathFile.exists() && !outputPathFile.mkdirs()){
+            log.error("Could not create output directory: "+ outputPath);
+        }
+        if (outputPath.isEmpty()){
+            sourceProperties = new File(sourceFile);
+        }
+        // closed even if a write fails, a lane that leaked one descriptor per failed write would run out after enough disk errors
+        try (PrintWriter writer = new PrintWriter(sourceProperties.getPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : document.entrySet()) {
+                writer.println(KeyIndex.line(entry.getKey(), entry.getValue()));
+            }
+            if (writer.checkError()) {
+                throw new IOException("Error writing " + sourceProperties.getPath());
+            }
+        }
+        if (keyIndex != null) {
+            keyIndex.update(sourceFile, previous, document);
+        }
+        written.end();
+        if (written.shouldCommit()) {
+            written.correlationId = correlationId;
+            written.sourceFile = sourceFile;
+            written.bytes = sourceProperties.length();
+            written.keyCount = document.size();
+            written.commit();
+        }
+        log.debug("Processing JSON complete.  Wrote :"+ sourceProperties.getPath());
+    }
+
+    public static class Builder {
+        private int port = 8080;
+        private String outputPath = "";
+        private int numberOfThreads = defaultNumberOfThreads;
+        private int writerLanes = defaultWriterLanes;
+        private long coalesceWindowMillis = 0;
+        private int framedPort = -1;
+        private long maxBodyBytes = defaultMaxBodyBytes;
+        private long maxInFlightBytes = defaultMaxInFlightBytes;
+        private long readTimeoutMillis = defaultReadTimeoutMillis;
+        private long archiveAfterMillis = 0;
+        private long archiveBytesPerSecond = defaultArchiveBytesPerSecond;
+        private long archiveIntervalMillis = defaultArchiveIntervalMillis;
+        private boolean keyIndex = false;
+        private long indexSnapshotIntervalMillis = defaultIndexSnapshotIntervalMillis;
+
+        private Builder() {
+        }
+
+        /** Port to listen on, 0 picks a free port that can be read back with getPort once started. */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder outputPath(String outputPath) {
+            this.outputPath = outputPath == null ? "" : outputPath;
+            return this;
+        }
+
+        public Builder threads(int numberOfThreads) {
+            this.numberOfThreads = numberOfThreads;
+            return this;
+        }
+
+        public Builder writerLanes(int writerLanes) {
+            this.writerLanes = writerLanes;
+            return this;
+        }
+
+        public Builder coalesceWindowMillis(long coalesceWindowMillis) {
+            this.coalesceWindowMillis = coalesceWindowMillis;
+            return this;
+        }
+
+        /** Port taking framed TCP connections, 0 picks a free port, negative turns the framed transport off, which is the default. */
+        public Builder framedPort(int framedPort) {
+            this.framedPort = framedPort;
+            return this;
+        }
+
+        /** Largest upload body accepted, larger ones are answered with 413. */
+        public Builder maxBodyBytes(long maxBodyBytes) {
+            this.maxBodyBytes = maxBodyBytes;
+            return this;
+        }
+
+        /** Bytes all uploads being read or processed may hold together, uploads beyond it are answered with 503. */
+        public Builder maxInFlightBytes(long maxInFlightBytes) {
+            this.maxInFlightBytes = maxInFlightBytes;
+            return this;
+        }
+
+        /** How long an upload body may take to arrive, slower ones are answered with 408. */
+        public Builder readTimeoutMillis(long readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        /** Age after which output files are moved into compressed archive bundles, 0 keeps them loose, which is the default. */
+        public Builder archiveAfterMillis(long archiveAfterMillis) {
+            this.archiveAfterMillis = archiveAfterMillis;
+            return this;
+        }
+
+        /** Bytes per second archiving may read and write, so it doesn't compete with uploads for the disk. */
+        public Builder archiveBytesPerSecond(long archiveBytesPerSecond) {
+            this.archiveBytesPerSecond = archiveBytesPerSecond;
+            return this;
+        }
+
+        /** How long archiving waits after one run before looking for old output again. */
+        public Builder archiveIntervalMillis(long archiveIntervalMillis) {
+            this.archiveIntervalMillis = archiveIntervalMillis;
+            return this;
+        }
+
+        /** Keeps an inverted index of the documents written, queried with GET /index, off by default. */
+        public Builder keyIndex(boolean keyIndex) {
+            this.keyIndex = keyIndex;
+            return this;
+        }
+
+        /** How often the key index is saved to the output path so a restart doesn't read every output file, 0 saves it only on drain. */
+        public Builder indexSnapshotIntervalMillis(long indexSnapshotIntervalMillis) {
+            this.indexSnapshotIntervalMillis = indexSnapshotIntervalMillis;
+            return this;
+        }
+
+        public JsonServer build() {
+            validate();
+            return new JsonServer(this);
+        }
+
+        /** Checks every setting, so a reload can be validated without building a server from it. */
+        private void validate() {
+            if (numberOfThreads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1, was " + numberOfThreads);
+            }
+            if (writerLanes < 1) {
+                throw new IllegalArgumentException("writerLanes must be at least 1, was " + writerLanes);
+            }
+            AdmissionControl.validate(maxBodyBytes, maxInFlightBytes, readTimeoutMillis);
+            OutputCompactor.validate(archiveAfterMillis, archiveBytesPerSecond, archiveIntervalMillis);
+            KeyIndex.validate(indexSnapshotIntervalMillis);
         }
     }
-}
\ No newline at end of file
+}
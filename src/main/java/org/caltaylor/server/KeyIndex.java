@@ -0,0 +1,465 @@
+package org.caltaylor.server;
+
+import org.caltaylor.common.SymbolTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** KeyIndex is an in memory inverted index of the documents written, key to value to the sourceFiles holding that pair,
+ * so finding the files that contain a key or a value doesn't mean reading every output file.
+ * It is updated by the writer lane after each write, so updates for one file come in the order they hit the disk.
+ * It keeps only the postings, the lane hands it the document the file held before, read back from the output,
+ * to take the old postings out when the file is written again.
+ * Keys, values and sourceFiles are kept in sorted concurrent maps and sets, so a lookup reads them in order as they are
+ * and stops at its limit instead of copying and sorting every match.
+ * Every snapshotIntervalMillis the postings are written to a snapshot under &lt;outputPath&gt;/.index, and a restart
+ * loads it and then reads only the output files written since, rather than every file there is.
+ * Output files hold one key = value line per key, escaped the way {@link Properties} stores them.
+ * Without a snapshot everything in the output path, archived files included, is read once.
+ * */
+class KeyIndex implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(KeyIndex.class);
+    static final String INDEX_DIR_NAME = ".index";
+    static final String SNAPSHOT_FILE_NAME = "keyindex.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x4b494458; // KIDX
+    private static final int SNAPSHOT_VERSION = 2;
+    /** Files written this long before a snapshot started are read again on load, in case the clock moved or the file system rounds mtimes. */
+    private static final long CATCH_UP_MARGIN_MILLIS = 2000;
+    private static final String SEPARATOR = " = ";
+
+    private final SymbolTable keys;
+    /** The sourceFiles indexed, just their names, the documents are only in the postings. */
+    private final Set<String> files = ConcurrentHashMap.newKeySet();
+    private final ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>>> postings = new ConcurrentSkipListMap<>();
+    private volatile long snapshotIntervalMillis;
+    private ScheduledExecutorService scheduler;
+
+    KeyIndex(SymbolTable keys, long snapshotIntervalMillis) {
+        this.keys = keys;
+        setSnapshotIntervalMillis(snapshotIntervalMillis);
+    }
+
+    static void validate(long snapshotIntervalMillis) {
+        if (snapshotIntervalMillis < 0) {
+            throw new IllegalArgumentException("indexSnapshotIntervalMillis must be 0 for off or more, was " + snapshotIntervalMillis);
+        }
+    }
+
+    long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    /** Changes the interval from the next snapshot on, 0 stops periodic snapshots, one is still taken on close. */
+    void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        validate(snapshotIntervalMillis);
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /** Replaces what is indexed for sourceFile with document. Only called by the writer lane that owns sourceFile.
+     * @param previous what sourceFile held before, null if it didn't exist.
+     * */
+    void update(String sourceFile, Map<String, String> previous, Map<String, String> document) {
+        files.add(sourceFile);
+        if (previous != null) {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (!entry.getValue().equals(document.get(entry.getKey()))) {
+                    removePosting(entry.getKey(), entry.getValue(), sourceFile);
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : document.entrySet()) {
+            if (previous == null || !entry.getValue().equals(previous.get(entry.getKey()))) {
+                addPosting(entry.getKey(), entry.getValue(), sourceFile);
+            }
+        }
+    }
+
+    // lanes of different files share postings, adding and removing are serialized so an empty set isn't dropped while a file is added to it
+    private synchronized void addPosting(String key, String value, String sourceFile) {
+        postings.computeIfAbsent(key, k -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(value, v -> new ConcurrentSkipListSet<>())
+                .add(sourceFile);
+    }
+
+    private synchronized void removePosting(String key, String value, String sourceFile) {
+        ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>> values = postings.get(key);
+        Set<String> files = values == null ? null : values.get(value);
+        if (files == null) {
+            return;
+        }
+        files.remove(sourceFile);
+        if (files.isEmpty()) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    /** Takes every posting of sourceFiles out, one walk over all of them, for files whose previous document isn't known. */
+    private synchronized void removeAll(Set<String> sourceFiles) {
+        for (Iterator<ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>>> keyValues = postings.values().iterator(); keyValues.hasNext(); ) {
+            ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>> values = keyValues.next();
+            for (Iterator<ConcurrentSkipListSet<String>> valueFiles = values.values().iterator(); valueFiles.hasNext(); ) {
+                ConcurrentSkipListSet<String> held = valueFiles.next();
+                held.removeAll(sourceFiles);
+                if (held.isEmpty()) {
+                    valueFiles.remove();
+                }
+            }
+            if (values.isEmpty()) {
+                keyValues.remove();
+            }
+        }
+    }
+
+    /** The sourceFiles holding key with value, sorted. A live view, not a copy. */
+    SortedSet<String> find(String key, String value) {
+        Map<String, ConcurrentSkipListSet<String>> values = postings.get(key);
+        SortedSet<String> files = values == null ? null : values.get(value);
+        return files == null ? Collections.emptySortedSet() : Collections.unmodifiableSortedSet(files);
+    }
+
+    /** Every value of key and the sourceFiles holding it, sorted. A live view, not a copy. */
+    SortedMap<String, SortedSet<String>> findKey(String key) {
+        SortedMap<String, ConcurrentSkipListSet<String>> values = postings.get(key);
+        return values == null ? Collections.emptySortedMap() : Collections.unmodifiableSortedMap(values);
+    }
+
+    /** Keys holding value and the sourceFiles it is held in, sorted, in key order until more than limit keys are found,
+     * since each of them adds at least one file. Looks the value up under each key there is until then.
+     * */
+    SortedMap<String, SortedSet<String>> findValue(String value, int limit) {
+        SortedMap<String, SortedSet<String>> found = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>>> key : postings.entrySet()) {
+            SortedSet<String> files = key.getValue().get(value);
+            if (files != null && !files.isEmpty()) {
+                found.put(key.getKey(), Collections.unmodifiableSortedSet(files));
+                if (found.size() > limit) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    int getDocumentCount() {
+        return files.size();
+    }
+
+    int getKeyCount() {
+        return postings.size();
+    }
+
+    /** Fills the index from the snapshot in outputDir and the output files written after it,
+     * or from every output file when there is no usable snapshot. Called before the server takes uploads.
+     * An output file that can't be read is logged and left out, so one bad file doesn't keep the server from starting.
+     * @param compactor where archived output is read from, its files are only read when there is no snapshot.
+     * */
+    void load(Path outputDir, OutputCompactor compactor) throws IOException {
+        long start = System.nanoTime();
+        Path snapshot = outputDir.resolve(INDEX_DIR_NAME).resolve(SNAPSHOT_FILE_NAME);
+        long takenAt = -1;
+        if (Files.exists(snapshot)) {
+            try {
+                takenAt = readSnapshot(snapshot);
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable index snapshot " + snapshot + ", rebuilding from the output files: " + e.getLocalizedMessage());
+                files.clear();
+                postings.clear();
+            }
+        }
+        int reread = 0;
+        int skipped = 0;
+        // read reads the loose copy of a file archived before, so it isn't indexed twice
+        Set<String> fromArchive = new HashSet<>();
+        if (takenAt < 0) {
+            for (String sourceFile : compactor.archivedNames()) {
+                try {
+                    byte[] contents = compactor.read(sourceFile);
+                    if (contents != null) {
+                        update(sourceFile, null, parse(contents, keys));
+                        fromArchive.add(sourceFile);
+                        reread++;
+                    }
+                } catch (IOException e) {
+                    skipped++;
+                    log.warn("Leaving unreadable output file " + sourceFile + " out of the key index: " + e.getLocalizedMessage());
+                }
+            }
+        }
+        long cutoff = takenAt < 0 ? Long.MIN_VALUE : takenAt - CATCH_UP_MARGIN_MILLIS;
+        // the snapshot's postings of a file written since are taken out all at once after, the files since are few
+        Map<String, Map<String, String>> writtenSince = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(outputDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(".") || fromArchive.contains(name)) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() >= cutoff) {
+                        Map<String, String> document = parse(Files.readAllBytes(entry), keys);
+                        if (takenAt < 0) {
+                            update(name, null, document);
+                        } else {
+                            writtenSince.put(name, document);
+                        }
+                        reread++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // archived meanwhile
+                } catch (IOException e) {
+                    skipped++;
+                    log.warn("Leaving unreadable output file " + entry + " out of the key index: " + e.getLocalizedMessage());
+                }
+            }
+        }
+        if (!writtenSince.isEmpty()) {
+            removeAll(writtenSince.keySet());
+            for (Map.Entry<String, Map<String, String>> document : writtenSince.entrySet()) {
+                update(document.getKey(), null, document.getValue());
+            }
+        }
+        log.info("Loaded key index of " + outputDir + ", " + files.size() + " files and " + postings.size() + " keys, "
+                + (takenAt < 0 ? "rebuilt from " : "read from the snapshot and ") + reread + " output files in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms" + (skipped > 0 ? ", skipped " + skipped + " unreadable files" : ""));
+    }
+
+    /** The document an output file holds, in the order of its lines, keys interned in keys. */
+    static Map<String, String> parse(byte[] contents, SymbolTable keys) {
+        Map<String, String> document = new LinkedHashMap<>();
+        // Properties unescapes, load hands every line to put
+        Properties lines = new Properties() {
+            @Override
+            public synchronized Object put(Object key, Object value) {
+                return document.put(keys.intern((String) key), (String) value);
+            }
+        };
+        try {
+            lines.load(new StringReader(new String(contents, StandardCharsets.UTF_8)));
+        } catch (IOException | IllegalArgumentException e) {
+            // a line with a malformed escape ends the file, what came before it is kept
+            log.warn("Output file with a malformed line, indexing the " + document.size() + " keys before it: " + e.getLocalizedMessage());
+        }
+        return document;
+    }
+
+    /** The line an output file holds for key, both escaped as {@link Properties#store} would, without its unicode escapes. */
+    static String line(String key, String value) {
+        return escape(key, true) + SEPARATOR + escape(value, false);
+    }
+
+    private static String escape(String text, boolean isKey) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case ' ':
+                    escaped.append(i == 0 || isKey ? "\\ " : " ");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\f':
+                    escaped.append("\\f");
+                    break;
+                case '\\':
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    escaped.append('\\').append(c);
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /** Writes the postings to the snapshot, replacing the previous one only once the new one is complete. */
+    void snapshot(Path outputDir) throws IOException {
+        long takenAt = System.currentTimeMillis();
+        Path indexDir = Files.createDirectories(outputDir.resolve(INDEX_DIR_NAME));
+        Path snapshot = indexDir.resolve(SNAPSHOT_FILE_NAME);
+        Path tmp = indexDir.resolve(SNAPSHOT_FILE_NAME + ".tmp");
+        int written = 0;
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(file, 64 * 1024)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(takenAt);
+            for (Map.Entry<String, ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>>> key : postings.entrySet()) {
+                out.writeBoolean(true);
+                writeString(out, key.getKey());
+                for (Map.Entry<String, ConcurrentSkipListSet<String>> value : key.getValue().entrySet()) {
+                    // lanes change the set meanwhile, its size is taken from a copy
+                    List<String> holding = new ArrayList<>(value.getValue());
+                    out.writeBoolean(true);
+                    writeString(out, value.getKey());
+                    out.writeInt(holding.size());
+                    for (String sourceFile : holding) {
+                        writeString(out, sourceFile);
+                    }
+                }
+                out.writeBoolean(false);
+                written++;
+            }
+            out.writeBoolean(false);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.debug("Wrote key index snapshot of " + written + " keys to " + snapshot);
+    }
+
+    /** Reads a snapshot into the index, returning when it was taken. */
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (InputStream file = Files.newInputStream(snapshot);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(file, 64 * 1024)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a key index snapshot of version " + SNAPSHOT_VERSION);
+            }
+            long takenAt = in.readLong();
+            while (in.readBoolean()) {
+                String key = keys.intern(readString(in));
+                while (in.readBoolean()) {
+                    String value = readString(in);
+                    int count = in.readInt();
+                    if (count < 0) {
+                        throw new IOException("Negative file count " + count + " for " + key + " = " + value);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        String sourceFile = readString(in);
+                        files.add(sourceFile);
+                        addPosting(key, value, sourceFile);
+                    }
+                }
+            }
+            return takenAt;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 * 1024 * 1024) {
+            throw new EOFException("String length " + length + " out of range");
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /** Takes a snapshot of outputDir every snapshotIntervalMillis on a background thread. */
+    synchronized void start(Supplier<String> outputPath) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JsonServer-index-snapshot");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduleNext(outputPath);
+    }
+
+    private synchronized void scheduleNext(Supplier<String> outputPath) {
+        if (scheduler == null) {
+            return;
+        }
+        long interval = snapshotIntervalMillis;
+        try {
+            // an interval of 0 checks back now and then in case it is turned on again
+            scheduler.schedule(() -> {
+                String path = outputPath.get();
+                if (snapshotIntervalMillis > 0 && !path.isEmpty()) {
+                    try {
+                        snapshot(Path.of(path));
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Could not write key index snapshot, trying again next interval: " + e.getLocalizedMessage(), e);
+                    }
+                }
+                scheduleNext(outputPath);
+            }, interval > 0 ? interval : TimeUnit.SECONDS.toMillis(10), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Key index snapshots stopped");
+        }
+    }
+
+    /** Stops periodic snapshots and waits for one being written, so a final snapshot taken after doesn't race it. */
+    @Override
+    public void close() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                if (!stopping.awaitTermination(10, TimeUnit.SECONDS)) {
+                    stopping.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                stopping.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
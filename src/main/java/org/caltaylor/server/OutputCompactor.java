@@ -0,0 +1,607 @@
+package org.caltaylor.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** OutputCompactor folds output files older than archiveAfterMillis into compressed archive bundles,
+ * so the output path holds a few large files instead of one small file per upload.
+ * A bundle is a run of gzip members, each compressing up to 64 KB of consecutive output files, and next to it
+ * an index saying which member each file is in and where inside it. The index is written last,
+ * a bundle without one was interrupted and is removed by the compactor thread when it first runs on an output path,
+ * never by a reader, which could catch a bundle that is still being written. {@link #read(String)} finds a file
+ * whether it is still loose or archived, the loose one winning since it is newer.
+ * It runs on one minimum priority thread and reads and writes at most bytesPerSecond, so uploads keep the disk.
+ * An archived file is removed by the writer lane that owns it, and only if it still holds exactly what was archived,
+ * so the lane stays the only thing touching its files and no newer version is lost.
+ * A file archived again leaves its older copy in an earlier bundle, a bundle left with less than half of its files
+ * still current is rewritten with just those, and one with none is removed.
+ * */
+class OutputCompactor implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(OutputCompactor.class);
+    static final String ARCHIVE_DIR_NAME = ".archive";
+    private static final String BUNDLE_PREFIX = "bundle-";
+    private static final String BUNDLE_SUFFIX = ".gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int BLOCK_BYTES = 64 * 1024;
+    static final int MAX_FILES_PER_BUNDLE = 10_000;
+    /** A bundle with fewer current files than this share of what it was written with is rewritten. */
+    private static final double REWRITE_BELOW_CURRENT_SHARE = 0.5;
+
+    private final Supplier<String> outputPath;
+    private final WriterLanes writerLanes;
+    private volatile long archiveAfterMillis;
+    private volatile long bytesPerSecond;
+    private volatile long intervalMillis;
+    private ScheduledExecutorService scheduler;
+    private volatile Index index;
+    /** When the throttled I/O done so far is allowed to have finished, only used by the compactor thread. */
+    private long throttleUntil;
+    /** The output path whose unfinished bundles have been cleaned up, only used by the compactor thread. */
+    private Path recoveredDir;
+    private final AtomicLong archivedFiles = new AtomicLong();
+    private final AtomicLong archivedBytes = new AtomicLong();
+    private final AtomicLong bundleBytes = new AtomicLong();
+
+    OutputCompactor(Supplier<String> outputPath, WriterLanes writerLanes, long archiveAfterMillis, long bytesPerSecond, long intervalMillis) {
+        this.outputPath = outputPath;
+        this.writerLanes = writerLanes;
+        setLimits(archiveAfterMillis, bytesPerSecond, intervalMillis);
+    }
+
+    static void validate(long archiveAfterMillis, long bytesPerSecond, long intervalMillis) {
+        if (archiveAfterMillis < 0) {
+            throw new IllegalArgumentException("archiveAfterMillis must be 0 for off or more, was " + archiveAfterMillis);
+        }
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("archiveBytesPerSecond must be at least 1, was " + bytesPerSecond);
+        }
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("archiveIntervalMillis must be at least 1, was " + intervalMillis);
+        }
+    }
+
+    /** Changes the settings from the next run on, 0 for archiveAfterMillis stops archiving. */
+    void setLimits(long archiveAfterMillis, long bytesPerSecond, long intervalMillis) {
+        validate(archiveAfterMillis, bytesPerSecond, intervalMillis);
+        this.archiveAfterMillis = archiveAfterMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = intervalMillis;
+    }
+
+    long getArchiveAfterMillis() {
+        return archiveAfterMillis;
+    }
+
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JsonServer-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduleNext(0);
+    }
+
+    private synchronized void scheduleNext(long delayMillis) {
+        if (scheduler == null) {
+            return;
+        }
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    compactOnce();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    log.error("Compacting output failed, trying again next run: " + e.getLocalizedMessage(), e);
+                }
+                scheduleNext(intervalMillis);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Compactor stopped");
+        }
+    }
+
+    /** Archives every loose output file older than archiveAfterMillis, one bundle of at most MAX_FILES_PER_BUNDLE at a time,
+     * then reclaims the space of archived copies that newer bundles replaced. Only ever run by the compactor thread.
+     * */
+    void compactOnce() throws IOException, InterruptedException {
+        long archiveAfter = archiveAfterMillis;
+        String path = outputPath.get();
+        if (path.isEmpty()) {
+            // the working directory may hold anything, only a dedicated output path is archived
+            log.debug("Not archiving, no outputPath is set");
+            return;
+        }
+        Path outputDir = Path.of(path);
+        if (!outputDir.equals(recoveredDir)) {
+            removeUnfinished(outputDir);
+            recoveredDir = outputDir;
+        }
+        if (archiveAfter <= 0) {
+            return;
+        }
+        Index current = indexFor(outputDir);
+        FileTime cutoff = FileTime.fromMillis(System.currentTimeMillis() - archiveAfter);
+        List<Loose> batch = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(outputDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(".") || !isArchivableName(name)) {
+                    continue;
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (attributes.isRegularFile() && attributes.lastModifiedTime().compareTo(cutoff) < 0) {
+                    batch.add(new Loose(entry));
+                    if (batch.size() == MAX_FILES_PER_BUNDLE) {
+                        archive(current, batch);
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            archive(current, batch);
+        }
+        reclaimSuperseded(current);
+    }
+
+    /** Removes what an interrupted run left in the archive directory, temporary files and bundles that never got their index. */
+    private static void removeUnfinished(Path outputDir) throws IOException {
+        Path archiveDir = outputDir.resolve(ARCHIVE_DIR_NAME);
+        if (!Files.isDirectory(archiveDir)) {
+            return;
+        }
+        Set<String> indexed = new TreeSet<>();
+        List<Path> bundles = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(archiveDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    Files.deleteIfExists(entry);
+                } else if (name.startsWith(BUNDLE_PREFIX) && name.endsWith(INDEX_SUFFIX)) {
+                    indexed.add(name.substring(0, name.length() - INDEX_SUFFIX.length()));
+                } else if (name.startsWith(BUNDLE_PREFIX) && name.endsWith(BUNDLE_SUFFIX)) {
+                    bundles.add(entry);
+                }
+            }
+        }
+        for (Path bundle : bundles) {
+            String name = bundle.getFileName().toString();
+            if (!indexed.contains(name.substring(0, name.length() - BUNDLE_SUFFIX.length()))) {
+                log.warn("Removing archive bundle " + bundle + ", it has no index so it was never finished");
+                Files.deleteIfExists(bundle);
+            }
+        }
+    }
+
+    private static boolean isArchivableName(String name) {
+        return name.indexOf('\t') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0;
+    }
+
+    /** Bundles the loose files, each is then removed on its lane unless it was rewritten in the meantime. */
+    private void archive(Index current, List<Loose> files) throws IOException, InterruptedException {
+        Map<String, Loose> byName = new TreeMap<>();
+        for (Loose file : files) {
+            byName.put(file.path.getFileName().toString(), file);
+        }
+        long looseBytes = 0;
+        List<Loose> archived = new ArrayList<>();
+        long seq = writeBundle(current, byName.keySet(), name -> {
+            Loose file = byName.get(name);
+            try {
+                byte[] contents = Files.readAllBytes(file.path);
+                file.digest = digest(contents);
+                file.size = contents.length;
+                return contents;
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        });
+        for (Loose file : byName.values()) {
+            if (file.digest != null) {
+                archived.add(file);
+                looseBytes += file.size;
+            }
+        }
+        long bundleSize = Files.size(current.bundlePath(seq));
+        archivedFiles.addAndGet(archived.size());
+        archivedBytes.addAndGet(looseBytes);
+        bundleBytes.addAndGet(bundleSize);
+        for (Loose file : archived) {
+            writerLanes.execute(file.path.getFileName().toString(), () -> deleteIfUnchanged(file));
+        }
+        log.info("Archived " + archived.size() + " output files, " + looseBytes + " bytes, into " + current.bundlePath(seq) + " of " + bundleSize + " bytes");
+    }
+
+    /** Rewrites every bundle whose files mostly went into newer bundles with just the files it is still the newest copy of,
+     * and removes those it is the newest copy of none of.
+     * */
+    private void reclaimSuperseded(Index current) throws IOException, InterruptedException {
+        Map<Long, Integer> currentFiles = new TreeMap<>();
+        for (Entry entry : current.entries.values()) {
+            currentFiles.merge(entry.bundle, 1, Integer::sum);
+        }
+        for (Map.Entry<Long, Integer> bundle : new TreeMap<>(current.bundleFiles).entrySet()) {
+            long seq = bundle.getKey();
+            int still = currentFiles.getOrDefault(seq, 0);
+            if (still == 0) {
+                log.info("Removing archive bundle " + current.bundlePath(seq) + ", every file in it was archived again since");
+                current.removeBundle(seq);
+            } else if (still < bundle.getValue() * REWRITE_BELOW_CURRENT_SHARE) {
+                Set<String> names = new TreeSet<>();
+                for (Map.Entry<String, Entry> entry : current.entries.entrySet()) {
+                    if (entry.getValue().bundle == seq) {
+                        names.add(entry.getKey());
+                    }
+                }
+                long rewritten = writeBundle(current, names, name -> {
+                    Entry entry = current.entries.get(name);
+                    return entry == null || entry.bundle != seq ? null : readEntry(current, entry);
+                });
+                current.removeBundle(seq);
+                log.info("Rewrote archive bundle " + current.bundlePath(seq) + " as " + current.bundlePath(rewritten) + " with the "
+                        + names.size() + " of its " + bundle.getValue() + " files no newer bundle has");
+            }
+        }
+    }
+
+    /** Where writeBundle gets each file from, null leaves the file out. */
+    private interface Contents {
+        byte[] read(String name) throws IOException;
+    }
+
+    /** Writes the named files into the next bundle and makes the index point at it.
+     * @return the sequence number of the bundle.
+     * */
+    private long writeBundle(Index current, Set<String> names, Contents source) throws IOException, InterruptedException {
+        Files.createDirectories(current.archiveDir);
+        long seq = current.nextBundle++;
+        Path bundle = current.bundlePath(seq);
+        Path bundleTmp = bundle.resolveSibling(bundle.getFileName() + TMP_SUFFIX);
+        Path indexFile = current.indexPath(seq);
+        Path indexTmp = indexFile.resolveSibling(indexFile.getFileName() + TMP_SUFFIX);
+        Map<String, Entry> written = new TreeMap<>();
+        try {
+            try (FileChannel out = FileChannel.open(bundleTmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                Block block = new Block();
+                for (String name : names) {
+                    byte[] contents = source.read(name);
+                    if (contents == null) {
+                        continue;
+                    }
+                    throttle(contents.length);
+                    block.add(name, contents);
+                    if (block.size() >= BLOCK_BYTES) {
+                        block.flush(out, seq, written);
+                    }
+                }
+                block.flush(out, seq, written);
+                out.force(true);
+            }
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, Entry> entry : written.entrySet()) {
+                Entry e = entry.getValue();
+                lines.append(entry.getKey()).append('\t').append(e.blockOffset).append('\t').append(e.blockLength)
+                        .append('\t').append(e.offsetInBlock).append('\t').append(e.length).append('\n');
+            }
+            try (FileChannel out = FileChannel.open(indexTmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(bundleTmp, bundle, StandardCopyOption.ATOMIC_MOVE);
+            // the index going in place is what makes the bundle count
+            Files.move(indexTmp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            Files.deleteIfExists(bundleTmp);
+            Files.deleteIfExists(indexTmp);
+            Files.deleteIfExists(bundle);
+            throw e;
+        }
+        current.entries.putAll(written);
+        current.bundleFiles.put(seq, written.size());
+        return seq;
+    }
+
+    /** Runs on the file's writer lane, so no write of it can be under way.
+     * The contents are compared rather than the modification time and size, a rewrite can keep both.
+     * */
+    private static void deleteIfUnchanged(Loose file) {
+        try {
+            if (Arrays.equals(digest(Files.readAllBytes(file.path)), file.digest)) {
+                Files.delete(file.path);
+            } else {
+                log.debug("Keeping " + file.path + ", it was rewritten after being archived");
+            }
+        } catch (NoSuchFileException e) {
+            // already gone
+        } catch (IOException e) {
+            log.warn("Could not remove archived output file " + file.path + ", it stays loose: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static byte[] digest(byte[] contents) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every jdk has SHA-256", e);
+        }
+    }
+
+    /** Waits as long as moving bytes takes at bytesPerSecond, less whatever time has already passed since the last wait. */
+    private void throttle(long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        throttleUntil = Math.max(throttleUntil, now) + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long waitNanos = throttleUntil - now;
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /** The contents of an output file, loose or archived, null if there is none by that name. */
+    byte[] read(String sourceFile) throws IOException {
+        if (sourceFile.isEmpty() || sourceFile.startsWith(".") || sourceFile.contains("/") || sourceFile.contains("\\")) {
+            return null;
+        }
+        Path outputDir = Path.of(outputPath.get());
+        try {
+            return Files.readAllBytes(outputDir.resolve(sourceFile));
+        } catch (NoSuchFileException e) {
+            // archived, or never written
+        }
+        Index current = indexFor(outputDir);
+        Entry entry = current.entries.get(sourceFile);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return readEntry(current, entry);
+        } catch (NoSuchFileException e) {
+            // the bundle was rewritten after the entry was looked up, the index points at the new one by now
+            Entry moved = current.entries.get(sourceFile);
+            if (moved == null || moved == entry) {
+                throw e;
+            }
+            return readEntry(current, moved);
+        }
+    }
+
+    private static byte[] readEntry(Index current, Entry entry) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(entry.blockLength);
+        try (FileChannel in = FileChannel.open(current.bundlePath(entry.bundle), StandardOpenOption.READ)) {
+            while (compressed.hasRemaining()) {
+                if (in.read(compressed, entry.blockOffset + compressed.position()) < 0) {
+                    throw new EOFException("Archive bundle " + entry.bundle + " is shorter than its index says");
+                }
+            }
+        }
+        try (GZIPInputStream block = new GZIPInputStream(new ByteArrayInputStream(compressed.array()))) {
+            byte[] upToFile = block.readNBytes(entry.offsetInBlock + entry.length);
+            return Arrays.copyOfRange(upToFile, entry.offsetInBlock, entry.offsetInBlock + entry.length);
+        }
+    }
+
+    /** The index of the current output path, loaded from its archive directory the first time it is needed. */
+    private Index indexFor(Path outputDir) throws IOException {
+        Index current = index;
+        if (current != null && current.outputDir.equals(outputDir)) {
+            return current;
+        }
+        synchronized (this) {
+            current = index;
+            if (current == null || !current.outputDir.equals(outputDir)) {
+                current = Index.load(outputDir);
+                index = current;
+            }
+            return current;
+        }
+    }
+
+    /** The names of every file archived from the current output path, some may since have been written again and be loose. */
+    Set<String> archivedNames() throws IOException {
+        return new TreeSet<>(indexFor(Path.of(outputPath.get())).entries.keySet());
+    }
+
+    long getArchivedFiles() {
+        return archivedFiles.get();
+    }
+
+    int getIndexedFiles() {
+        Index current = index;
+        return current == null ? 0 : current.entries.size();
+    }
+
+    String statsString() {
+        return "archivedFiles=" + getArchivedFiles() + " archivedBytes=" + archivedBytes.get() + " bundleBytes=" + bundleBytes.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** A loose output file picked for archiving, with a digest of what was archived once it has been read. */
+    private static class Loose {
+        final Path path;
+        byte[] digest;
+        long size;
+
+        Loose(Path path) {
+            this.path = path;
+        }
+    }
+
+    /** Where one archived file is, a gzip member of a bundle and the file's place in it once uncompressed. */
+    private static class Entry {
+        final long bundle;
+        final long blockOffset;
+        final int blockLength;
+        final int offsetInBlock;
+        final int length;
+
+        Entry(long bundle, long blockOffset, int blockLength, int offsetInBlock, int length) {
+            this.bundle = bundle;
+            this.blockOffset = blockOffset;
+            this.blockLength = blockLength;
+            this.offsetInBlock = offsetInBlock;
+            this.length = length;
+        }
+    }
+
+    /** Output files collected until there are BLOCK_BYTES of them to compress as one member. */
+    private class Block {
+        private final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        private final Map<String, int[]> files = new TreeMap<>();
+
+        void add(String name, byte[] bytes) {
+            files.put(name, new int[]{contents.size(), bytes.length});
+            contents.write(bytes, 0, bytes.length);
+        }
+
+        int size() {
+            return contents.size();
+        }
+
+        void flush(FileChannel out, long seq, Map<String, Entry> written) throws IOException, InterruptedException {
+            if (files.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                contents.writeTo(gzip);
+            }
+            long blockOffset = out.position();
+            ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            throttle(compressed.size());
+            for (Map.Entry<String, int[]> file : files.entrySet()) {
+                written.put(file.getKey(), new Entry(seq, blockOffset, compressed.size(), file.getValue()[0], file.getValue()[1]));
+            }
+            contents.reset();
+            files.clear();
+        }
+    }
+
+    /** The archived files of one output path, newest bundle winning when a file was archived more than once. */
+    private static class Index {
+        final Path outputDir;
+        final Path archiveDir;
+        final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        /** How many files each bundle was written with, only used by the compactor thread once loaded. */
+        final Map<Long, Integer> bundleFiles = new TreeMap<>();
+        /** Only used by the compactor thread once loaded. */
+        long nextBundle = 1;
+
+        private Index(Path outputDir) {
+            this.outputDir = outputDir;
+            this.archiveDir = outputDir.resolve(ARCHIVE_DIR_NAME);
+        }
+
+        Path bundlePath(long seq) {
+            return archiveDir.resolve(BUNDLE_PREFIX + seq + BUNDLE_SUFFIX);
+        }
+
+        Path indexPath(long seq) {
+            return archiveDir.resolve(BUNDLE_PREFIX + seq + INDEX_SUFFIX);
+        }
+
+        /** Drops a bundle no entry points at any more, its index first so a crash in between leaves an unfinished bundle. */
+        void removeBundle(long seq) throws IOException {
+            Files.deleteIfExists(indexPath(seq));
+            Files.deleteIfExists(bundlePath(seq));
+            bundleFiles.remove(seq);
+        }
+
+        /** Reads the index files, leaving anything unfinished where it is, since this may run while a bundle is being written. */
+        static Index load(Path outputDir) throws IOException {
+            Index index = new Index(outputDir);
+            if (!Files.isDirectory(index.archiveDir)) {
+                return index;
+            }
+            TreeMap<Long, Path> indexFiles = new TreeMap<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(index.archiveDir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (name.startsWith(BUNDLE_PREFIX) && name.endsWith(INDEX_SUFFIX)) {
+                        indexFiles.put(Long.parseLong(name.substring(BUNDLE_PREFIX.length(), name.length() - INDEX_SUFFIX.length())), entry);
+                    } else if (name.startsWith(BUNDLE_PREFIX) && name.endsWith(BUNDLE_SUFFIX)) {
+                        // an unfinished bundle's number isn't used again
+                        long seq = Long.parseLong(name.substring(BUNDLE_PREFIX.length(), name.length() - BUNDLE_SUFFIX.length()));
+                        index.nextBundle = Math.max(index.nextBundle, seq + 1);
+                    }
+                }
+            }
+            for (Map.Entry<Long, Path> indexFile : indexFiles.entrySet()) {
+                long seq = indexFile.getKey();
+                int files = 0;
+                for (String line : Files.readAllLines(indexFile.getValue(), StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5) {
+                        log.warn("Skipping malformed line in " + indexFile.getValue() + ": " + line);
+                        continue;
+                    }
+                    index.entries.put(fields[0], new Entry(seq, Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+                    files++;
+                }
+                index.bundleFiles.put(seq, files);
+                index.nextBundle = Math.max(index.nextBundle, seq + 1);
+            }
+            log.info("Loaded archive index of " + outputDir + ", " + index.entries.size() + " files in " + indexFiles.size() + " bundles");
+            return index;
+        }
+    }
+}
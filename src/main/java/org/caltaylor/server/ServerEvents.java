@@ -0,0 +1,74 @@
+package org.caltaylor.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** ServerEvents are the flight recorder events JsonServer emits for each stage a document goes through,
+ * carrying the correlation id the client sent so they line up with the client's events for the same file.
+ * Documents over the framed transport have no header to carry an id and are matched by sourceFile instead.
+ * Like the client's events they are off unless a recording enables them and fields are only filled in once shouldCommit says so.
+ * */
+final class ServerEvents {
+    private static final String CATEGORY = "Scanner";
+
+    private ServerEvents() {
+    }
+
+    @Name("org.caltaylor.UploadReceived")
+    @Label("Upload Received")
+    @Description("An http upload body was read and parsed")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static class UploadReceived extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Key Count")
+        int keyCount;
+    }
+
+    @Name("org.caltaylor.DocumentStored")
+    @Label("Document Stored")
+    @Description("A document was handed to its writer lane until it was on disk, waiting in the lane included")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static class DocumentStored extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Key Count")
+        int keyCount;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("org.caltaylor.DocumentWritten")
+    @Label("Document Written")
+    @Description("A writer lane wrote a document to the output path, versions it coalesced carry the id of the newest")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    static class DocumentWritten extends Event {
+        @Label("Correlation Id")
+        String correlationId;
+        @Label("Source File")
+        String sourceFile;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Key Count")
+        int keyCount;
+    }
+}
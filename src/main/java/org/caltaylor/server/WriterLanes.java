@@ -0,0 +1,285 @@
+package org.caltaylor.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** WriterLanes serializes output writes per sourceFile without locks.
+ * Every sourceFile hashes onto one of N lanes, and each lane is drained by a single thread,
+ * so two requests for the same file can never write it at the same time and are applied in arrival order.
+ * Request threads hand documents over through a concurrent map and queue, then wait on the returned future.
+ * When a newer version of a file arrives before the lane got to the older one, the older one is replaced
+ * and both callers complete once the newest version is on disk.
+ * Other work on a file, such as removing it once it is archived, can be run on its lane with {@link #execute(String, Runnable)}
+ * so it never overlaps a write of the same file, and runs after every version of the file submitted before it is written.
+ * */
+class WriterLanes implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WriterLanes.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Writes one document, always called from the lane thread that owns sourceFile.
+     * correlationId is that of the newest version submitted, null if its client didn't send one.
+     * */
+    interface DocumentWriter {
+        void write(String sourceFile, Map<String, String> document, String correlationId) throws IOException;
+    }
+
+    private final Lane[] lanes;
+    private final DocumentWriter writer;
+    private volatile long coalesceWindowNanos;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    WriterLanes(int laneCount, long coalesceWindowMillis, DocumentWriter writer) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("laneCount must be at least 1, was " + laneCount);
+        }
+        this.writer = writer;
+        this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis);
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+            lanes[i].start();
+        }
+        log.info("Started " + laneCount + " writer lanes, coalesceWindowMillis=" + coalesceWindowMillis);
+    }
+
+    /** Queues document for sourceFile, the future completes once it, or a newer version of it, has been written.
+     * Once the lanes are drained it fails instead, even when the drain races the submit.
+     * @param correlationId handed to the writer along with the document, may be null.
+     * */
+    CompletableFuture<Void> submit(String sourceFile, Map<String, String> document, String correlationId) {
+        submitted.incrementAndGet();
+        Lane lane = laneFor(sourceFile);
+        if (!lane.running) {
+            return CompletableFuture.failedFuture(new IOException("Writer lanes are shut down"));
+        }
+        Pending update = new Pending(document, correlationId, System.nanoTime());
+        Pending previous = lane.pending.put(sourceFile, update);
+        if (previous == null) {
+            lane.ready.offer(sourceFile);
+            LockSupport.unpark(lane);
+        } else {
+            // the lane hasn't picked up the previous version yet, it is superseded by this one
+            coalesced.incrementAndGet();
+            update.firstSubmitNanos = previous.firstSubmitNanos;
+            update.done.whenComplete((v, t) -> previous.complete(t));
+        }
+        if (!lane.running && lane.pending.remove(sourceFile, update)) {
+            // drained between the check and the put, the lane may already be gone and would never get to it
+            update.complete(new IOException("Writer lanes are shut down"));
+        }
+        return update.done;
+    }
+
+    /** Runs task on the lane that owns sourceFile, between its writes, the future completes once it has run.
+     * A document of sourceFile submitted before it is written first, without waiting out the coalesce window.
+     * */
+    CompletableFuture<Void> execute(String sourceFile, Runnable task) {
+        Lane lane = laneFor(sourceFile);
+        try {
+            return CompletableFuture.runAsync(task, command -> {
+                if (!lane.running) {
+                    throw new RejectedExecutionException("Writer lanes are shut down");
+                }
+                FileTask fileTask = new FileTask(sourceFile, command);
+                lane.tasks.offer(fileTask);
+                LockSupport.unpark(lane);
+                if (!lane.running && lane.tasks.remove(fileTask)) {
+                    // drained between the check and the offer, the lane may already be gone and would never run it
+                    throw new RejectedExecutionException("Writer lanes are shut down");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IOException("Writer lanes are shut down", e));
+        }
+    }
+
+    int laneIndex(String sourceFile) {
+        int h = sourceFile.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, lanes.length);
+    }
+
+    private Lane laneFor(String sourceFile) {
+        return lanes[laneIndex(sourceFile)];
+    }
+
+    void setCoalesceWindowMillis(long coalesceWindowMillis) {
+        this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis);
+    }
+
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    long getSubmitted() {
+        return submitted.get();
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /** Stops accepting new documents, writes everything already queued and waits up to timeoutMillis for the lanes to finish.
+     * @return true if every lane finished in time.
+     * */
+    boolean drain(long timeoutMillis) throws InterruptedException {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            LockSupport.unpark(lane);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean drained = true;
+        for (Lane lane : lanes) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            lane.join(Math.max(1, remainingMillis));
+            if (lane.isAlive()) {
+                drained = false;
+                lane.interrupt();
+            } else {
+                lane.failPending();
+            }
+        }
+        log.info("Writer lanes stopped, submitted=" + getSubmitted() + " written=" + getWritten() + " coalesced=" + getCoalesced());
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (!drain(TimeUnit.SECONDS.toMillis(60))) {
+                log.error("Writer lanes did not finish writing before the timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Pending {
+        final Map<String, String> document;
+        final String correlationId;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile long firstSubmitNanos;
+
+        Pending(Map<String, String> document, String correlationId, long firstSubmitNanos) {
+            this.document = document;
+            this.correlationId = correlationId;
+            this.firstSubmitNanos = firstSubmitNanos;
+        }
+
+        void complete(Throwable failure) {
+            if (failure == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /** A task waiting for the lane, along with the file it must not run ahead of. */
+    private static class FileTask {
+        final String sourceFile;
+        final Runnable command;
+
+        FileTask(String sourceFile, Runnable command) {
+            this.sourceFile = sourceFile;
+            this.command = command;
+        }
+    }
+
+    private class Lane extends Thread {
+        final ConcurrentLinkedQueue<String> ready = new ConcurrentLinkedQueue<>();
+        final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<FileTask> tasks = new ConcurrentLinkedQueue<>();
+        volatile boolean running = true;
+
+        Lane(int index) {
+            super("JsonServer-writer-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running || !ready.isEmpty() || !tasks.isEmpty()) {
+                FileTask task = tasks.poll();
+                if (task != null) {
+                    // the task was queued after whatever is pending for its file, so that goes first
+                    Pending update = pending.remove(task.sourceFile);
+                    if (update != null) {
+                        write(task.sourceFile, update);
+                    }
+                    task.command.run();
+                    continue;
+                }
+                String sourceFile = ready.poll();
+                if (sourceFile == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                waitForCoalesceWindow(sourceFile);
+                Pending update = pending.remove(sourceFile);
+                if (update != null) {
+                    write(sourceFile, update);
+                }
+            }
+            failPending();
+        }
+
+        private void write(String sourceFile, Pending update) {
+            try {
+                writer.write(sourceFile, update.document, update.correlationId);
+                written.incrementAndGet();
+                update.complete(null);
+            } catch (IOException | RuntimeException e) {
+                log.error("Error writing " + sourceFile + ": " + e.getLocalizedMessage(), e);
+                update.complete(e);
+            }
+        }
+
+        /** Anything that raced in after shutdown never gets written, tasks still run since nothing else writes now. */
+        void failPending() {
+            FileTask task;
+            while ((task = tasks.poll()) != null) {
+                task.command.run();
+            }
+            for (String sourceFile : pending.keySet()) {
+                Pending update = pending.remove(sourceFile);
+                if (update != null) {
+                    update.complete(new IOException("Writer lanes are shut down"));
+                }
+            }
+        }
+
+        /** Gives later updates of the same file a short time to arrive so they collapse into one write. */
+        private void waitForCoalesceWindow(String sourceFile) {
+            long windowNanos = coalesceWindowNanos;
+            if (windowNanos <= 0 || !running) {
+                return;
+            }
+            Pending update = pending.get(sourceFile);
+            if (update == null) {
+                return;
+            }
+            long remaining = update.firstSubmitNanos + windowNanos - System.nanoTime();
+            while (remaining > 0 && running) {
+                LockSupport.parkNanos(this, remaining);
+                remaining = update.firstSubmitNanos + windowNanos - System.nanoTime();
+            }
+        }
+    }
+}
@@ -8,9 +8,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -30,7 +34,7 @@ public class FunctionalTest {
      * 4. verify files get created in server output dir.
     */
     @Test
-    public void testEverythingTogether() throws IOException, InterruptedException {
+    public void testEverythingTogether() throws IOException, InterruptedException, ExecutionException, TimeoutException {
         //1. start server watching
         String serverConfigDir = CONFIG_DIR+"/serverConfig";
         String serverOutputDir = "build/functionalTest";
@@ -39,17 +43,8 @@ public class FunctionalTest {
         JsonServerTest.generateServerConfigFileInDir(serverConfigDir, "1337", serverOutputDir);
         System.out.println("testEverythingTogether starting server");
         JsonServer.stopServer();
-        Thread jsonServerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    JsonServer.main(new String[]{serverConfigDir});
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
-        jsonServerThread.start();
+        // the future completes once the server is bound, no need to sleep for it
+        JsonServer jsonServer = JsonServer.fromConfigDir(serverConfigDir).start().get(10, TimeUnit.SECONDS);
 
         //2. start dir watcher, might need to background this process
         String clientConfigDir = CONFIG_DIR+"/clientConfig";
@@ -61,7 +56,7 @@ public class FunctionalTest {
         dirWatcherThread.start();
 
         try {
-            Thread.sleep(1000);  // give some time for the server to boot up and start watching dir
+            Thread.sleep(1000);  // give some time for the client to start watching dir
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -100,10 +95,9 @@ public class FunctionalTest {
             System.out.println("testEverythingTogether Testing server wrote copy of original file to configured output dir: "+ createdServerFile.getPath());
             assertTrue(createdServerFile.exists(), "File should have been created by the server: "+createdServerFile.getPath());
         }
-        // Wait for both threads to finish
-        jsonServerThread.join();
+        // Wait for the client thread to finish
         dirWatcherThread.join();
-        JsonServer.stopServer();
+        jsonServer.drain(Duration.ofSeconds(10));
         System.out.println("testEverythingTogether complete");
     }
 
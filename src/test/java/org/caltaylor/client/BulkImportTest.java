@@ -0,0 +1,192 @@
+package org.caltaylor.client;
+
+import com.sun.net.httpserver.HttpServer;
+import org.caltaylor.server.JsonServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** BulkImportTest imports a small directory tree into a real JsonServer,
+ * then checks the checkpoint makes a second run skip what was already uploaded.
+ * */
+public class BulkImportTest {
+    private JsonServer server;
+    private Path importRoot;
+    private Path configDir;
+    private Path outputDir;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        outputDir = Files.createTempDirectory("bulkImportOutput");
+        server = JsonServer.builder().port(0).outputPath(outputDir.toString()).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        importRoot = Files.createTempDirectory("bulkImport");
+        for (int dir = 0; dir < 3; dir++) {
+            Path subdir = Files.createDirectories(importRoot.resolve("year" + dir).resolve("month"));
+            for (int i = 0; i < 10; i++) {
+                Files.writeString(subdir.resolve("archived" + dir + "-" + i + ".properties"), "key1 = value" + i + "\nother = skipped\n");
+            }
+        }
+        configDir = Files.createTempDirectory("bulkImportConfig");
+        Files.writeString(configDir.resolve(DirWatcher.getConfigFileName()),
+                "watchDirectory = " + configDir.resolve("watch") + "\n"
+                        + "watchDirectoryFilterPattern = key.*\n"
+                        + "scannerServerURL = http://localhost:" + server.getPort() + "/json\n"
+                        + "importThreads = 4\n"
+                        + "importMaxInFlight = 8\n");
+    }
+
+    @AfterEach
+    public void afterEach() {
+        server.drain(Duration.ofSeconds(10));
+    }
+
+    private BulkImport.Summary importTree() {
+        return DirWatcher.importTree(new String[]{"--import", importRoot.toString(), configDir.toString()});
+    }
+
+    @Test
+    public void testImportUploadsWholeTreeAndLeavesFiles() throws IOException {
+        BulkImport.Summary summary = importTree();
+
+        assertEquals(30, summary.getFound());
+        assertEquals(30, summary.getUploaded());
+        assertEquals(0, summary.getFailed());
+        assertEquals(30, outputDir.toFile().list().length);
+        assertEquals(List.of("key1 = value3"), Files.readAllLines(outputDir.resolve("year1_month_archived1-3.properties")));
+        // the archive is left alone
+        assertTrue(Files.exists(importRoot.resolve("year1/month/archived1-3.properties")));
+        // the root line plus one line per file
+        assertEquals(31, Files.readAllLines(configDir.resolve(BulkImport.CHECKPOINT_FILE_NAME)).size());
+        // an import doesn't watch anything, so it leaves the watch directory alone
+        assertFalse(Files.exists(configDir.resolve("watch")));
+    }
+
+    @Test
+    public void testSameNamedFilesInSiblingDirsAreKeptApart() throws IOException {
+        Files.writeString(Files.createDirectories(importRoot.resolve("2019").resolve("01")).resolve("app.properties"), "key1 = january\n");
+        Files.writeString(Files.createDirectories(importRoot.resolve("2019").resolve("02")).resolve("app.properties"), "key1 = february\n");
+        // joined with underscores this would be sent as 2019_01_app.properties too, so it must fail rather than overwrite
+        Files.writeString(importRoot.resolve("2019_01_app.properties"), "key1 = clash\n");
+
+        BulkImport.Summary summary = importTree();
+
+        assertEquals(33, summary.getFound());
+        assertEquals(32, summary.getUploaded());
+        assertEquals(1, summary.getFailed());
+        assertEquals(List.of("key1 = february"), Files.readAllLines(outputDir.resolve("2019_02_app.properties")));
+        assertTrue(Files.readAllLines(outputDir.resolve("2019_01_app.properties")).get(0).matches("key1 = (january|clash)"));
+    }
+
+    @Test
+    public void testSecondRunResumesFromCheckpoint() throws IOException {
+        // an earlier run that was interrupted after two files
+        Files.write(configDir.resolve(BulkImport.CHECKPOINT_FILE_NAME), List.of(
+                importRoot.toAbsolutePath().normalize().toString(),
+                Path.of("year0", "month", "archived0-0.properties").toString(),
+                Path.of("year0", "month", "archived0-1.properties").toString()));
+
+        BulkImport.Summary resumed = importTree();
+        assertEquals(2, resumed.getSkipped());
+        assertEquals(28, resumed.getUploaded());
+
+        BulkImport.Summary again = importTree();
+        assertEquals(30, again.getSkipped());
+        assertEquals(0, again.getUploaded());
+    }
+
+    @Test
+    public void testFailedUploadsAreCountedAndRetried() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", Files.createTempDirectory("bulkImportWatch").toString());
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "http://localhost:" + closedPort + "/json");
+        WatchConfig tenant = WatchConfig.forTenant(props, WatchConfig.DEFAULT_TENANT, new HashMap<>());
+        Uploader uploader = new Uploader(props);
+        Path checkpointFile = configDir.resolve(BulkImport.CHECKPOINT_FILE_NAME);
+        try {
+            BulkImport.Summary summary = new BulkImport(uploader, tenant,
+                    importRoot, checkpointFile, 2, 4).run();
+            assertEquals(30, summary.getFailed());
+            assertEquals(0, summary.getUploaded());
+            // nothing was recorded, so the next run tries every file again
+            assertEquals(1, Files.readAllLines(checkpointFile).size());
+        } finally {
+            tenant.servers.close();
+            uploader.close();
+        }
+    }
+
+    @Test
+    public void testHttpUploadsOverlapUpToMaxInFlightWithOneWalkerThread() throws Exception {
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        HttpServer slowServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        slowServer.createContext("/json", exchange -> {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                // the health check
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                exchange.getRequestBody().readAllBytes();
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // counted out before answering, the client may start its next upload as soon as it has the answer
+            concurrent.decrementAndGet();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        slowServer.setExecutor(Executors.newCachedThreadPool());
+        slowServer.start();
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", Files.createTempDirectory("bulkImportWatch").toString());
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "http://localhost:" + slowServer.getAddress().getPort() + "/json");
+        WatchConfig tenant = WatchConfig.forTenant(props, WatchConfig.DEFAULT_TENANT, new HashMap<>());
+        Uploader uploader = new Uploader(props);
+        try {
+            BulkImport.Summary summary = new BulkImport(uploader, tenant,
+                    importRoot, configDir.resolve(BulkImport.CHECKPOINT_FILE_NAME), 1, 8).run();
+            assertEquals(30, summary.getUploaded());
+            assertTrue(maxConcurrent.get() > 1 && maxConcurrent.get() <= 8, "Uploads in flight at once: " + maxConcurrent.get());
+        } finally {
+            tenant.servers.close();
+            uploader.close();
+            slowServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testMissingImportDirIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DirWatcher.importTree(new String[]{"--import", importRoot.resolve("missing").toString(), configDir.toString()}));
+        assertThrows(IllegalArgumentException.class, () -> DirWatcher.importTree(new String[]{"--import", importRoot.toString()}));
+    }
+}
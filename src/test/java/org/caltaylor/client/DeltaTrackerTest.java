@@ -0,0 +1,97 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.DocumentDelta;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** DeltaTrackerTest checks that a delta holds exactly the changed keys and the right versions,
+ * that each server keeps its own base, and that files are sent whole when the server or the file isn't known.
+ * */
+public class DeltaTrackerTest {
+    private static final String server = "http://localhost:1/json";
+
+    private static Map<String, String> document(String... keysAndValues) {
+        Map<String, String> document = new HashMap<>();
+        document.put("sourceFile", "a.properties");
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            document.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return document;
+    }
+
+    @Test
+    public void testDeltaHoldsChangedAddedAndRemovedKeys() {
+        DeltaTracker tracker = new DeltaTracker(10);
+        Map<String, String> first = document("key1", "one", "key2", "two", "key3", "three");
+        assertNull(tracker.diff(server, first));
+        tracker.sent(server, first);
+
+        Map<String, String> second = document("key1", "one", "key2", "deux", "key4", "four");
+        DeltaTracker.Patch patch = tracker.diff(server, second);
+
+        assertNotNull(patch);
+        assertEquals(Map.of("key2", "deux", "key4", "four"), patch.changed);
+        assertEquals(List.of("key3"), patch.removed);
+        assertEquals(DocumentDelta.version(first), patch.baseVersion);
+        assertEquals(DocumentDelta.version(second), patch.version);
+
+        DeltaTracker.Patch unchanged = tracker.diff(server, first);
+        assertTrue(unchanged.changed.isEmpty());
+        assertTrue(unchanged.removed.isEmpty());
+    }
+
+    @Test
+    public void testOtherServerOrForgottenFileIsSentWhole() {
+        DeltaTracker tracker = new DeltaTracker(10);
+        Map<String, String> sent = document("key1", "one");
+        tracker.sent(server, sent);
+
+        assertNull(tracker.diff("http://localhost:2/json", sent));
+        tracker.forget(server, "a.properties");
+        assertNull(tracker.diff(server, sent));
+    }
+
+    @Test
+    public void testEachServerKeepsItsOwnBase() {
+        DeltaTracker tracker = new DeltaTracker(10);
+        String other = "http://localhost:2/json";
+        Map<String, String> first = document("key1", "one");
+        Map<String, String> second = document("key1", "uno");
+        tracker.sent(server, first);
+        // a failover sends the file to another server, which doesn't replace what the first one holds
+        tracker.sent(other, second);
+
+        assertEquals(DocumentDelta.version(first), tracker.diff(server, second).baseVersion);
+        assertEquals(DocumentDelta.version(second), tracker.diff(other, first).baseVersion);
+
+        // an upload failing on the other server leaves the first server's base alone
+        tracker.forget(other, "a.properties");
+        assertNull(tracker.diff(other, first));
+        assertNotNull(tracker.diff(server, second));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void testLeastRecentlySentFilesAreForgotten() {
+        DeltaTracker tracker = new DeltaTracker(3);
+        for (int i = 0; i < 5; i++) {
+            tracker.sent(server, Map.of("sourceFile", "f" + i, "key1", "v"));
+        }
+        assertEquals(3, tracker.size());
+        assertNull(tracker.diff(server, Map.of("sourceFile", "f1", "key1", "v")));
+        assertNotNull(tracker.diff(server, Map.of("sourceFile", "f4", "key1", "v")));
+
+        tracker.setMaxFiles(1);
+        assertEquals(1, tracker.size());
+        assertThrows(IllegalArgumentException.class, () -> tracker.setMaxFiles(0));
+    }
+}
@@ -2,6 +2,11 @@ package org.caltaylor.client;
 
 import com.github.tomakehurst.wiremock.junit5.WireMockRuntimeInfo;
 import com.github.tomakehurst.wiremock.junit5.WireMockTest;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.caltaylor.common.DocumentDelta;
 import org.caltaylor.server.JsonServer;
 import org.junit.jupiter.api.*;
 import org.slf4j.Logger;
@@ -9,18 +14,30 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -188,6 +205,270 @@ public class DirWatcherTest {
         Thread.sleep(1000);
     }
 
+    @Test
+    public void testApplyConfigSwapsFilterAndServers() {
+        DirWatcher dirWatcher = new DirWatcher(getTestProperties());
+        Properties updated = getTestProperties();
+        updated.setProperty("watchDirectoryFilterPattern", "another.*");
+        updated.setProperty("scannerServerURL", "http://localhost:1337/json,http://localhost:1338/json");
+
+        dirWatcher.applyConfig(updated);
+
+        WatchConfig config = dirWatcher.tenants.get(WatchConfig.DEFAULT_TENANT);
+        assertEquals("another.*", config.keyPattern.pattern());
+        assertEquals(2, config.servers.getNodes().size());
+        config.servers.close();
+    }
+
+    @Test
+    public void testApplyConfigKeepsPreviousConfigWhenInvalid() {
+        DirWatcher dirWatcher = new DirWatcher(getTestProperties());
+        Map<String, WatchConfig> before = dirWatcher.tenants;
+        Properties updated = getTestProperties();
+        updated.setProperty("watchDirectoryFilterPattern", "another.*");
+        updated.setProperty("scannerServerURL", "not a url");
+
+        assertThrows(IllegalArgumentException.class, () -> dirWatcher.applyConfig(updated));
+        assertSame(before, dirWatcher.tenants);
+    }
+
+    @Test
+    public void testTenantsShareOneClient() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(tmpDir + "/tenantOutput").build();
+        server.start().get(10, TimeUnit.SECONDS);
+        Properties props = new Properties();
+        props.setProperty("tenants", "alpha, beta");
+        props.setProperty("scannerServerURL", "http://localhost:" + server.getPort() + "/json");
+        props.setProperty("workerThreads", "2");
+        props.setProperty("tenant.alpha.watchDirectory", tmpDir + "/tenantAlpha");
+        props.setProperty("tenant.alpha.watchDirectoryFilterPattern", "key.*");
+        props.setProperty("tenant.beta.watchDirectory", tmpDir + "/tenantBeta");
+        props.setProperty("tenant.beta.watchDirectoryFilterPattern", "another.*");
+        props.setProperty("tenant.beta.weight", "3");
+        props.setProperty("tenant.beta.priority", "smallest_first");
+        DirWatcher dirWatcher = new DirWatcher(props);
+        assertEquals(2, dirWatcher.tenants.size());
+        // both tenants use the same servers, so they share one ring
+        assertSame(dirWatcher.tenants.get("alpha").servers, dirWatcher.tenants.get("beta").servers);
+
+        Thread thread = new Thread(dirWatcher);
+        thread.start();
+        try {
+            Thread.sleep(500); // give the watcher time to register both dirs
+            List<File> createdFiles = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                createdFiles.add(createTestFile(tmpDir + "/tenantAlpha", "alpha", "properties"));
+                createdFiles.add(createTestFile(tmpDir + "/tenantBeta", "beta", "properties"));
+            }
+            for (File createdFile : createdFiles) {
+                File written = new File(tmpDir + "/tenantOutput/" + createdFile.getName());
+                for (int i = 0; i < 100 && !written.exists(); i++) {
+                    Thread.sleep(50);
+                }
+                assertTrue(written.exists(), "File should have been uploaded: " + written);
+                // each tenant kept only the keys matching its own filter
+                int expectedKeys = createdFile.getName().startsWith("alpha") ? 3 : 4;
+                assertEquals(expectedKeys, Files.readAllLines(written.toPath()).size());
+            }
+        } finally {
+            thread.interrupt();
+            thread.join();
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testRewrittenFileIsSentAsOnlyItsChanges() throws Exception {
+        Path output = Path.of(tmpDir, "deltaOutput");
+        JsonServer server = JsonServer.builder().port(0).outputPath(output.toString()).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", tmpDir + "/deltaWatch");
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "http://localhost:" + server.getPort() + "/json");
+        props.setProperty("deltaSync", "true");
+        DirWatcher dirWatcher = new DirWatcher(props);
+        ServerRing servers = dirWatcher.tenants.get(WatchConfig.DEFAULT_TENANT).servers;
+        Path written = output.resolve("delta.properties");
+        try {
+            Map<String, String> document = new LinkedHashMap<>();
+            document.put("sourceFile", "delta.properties");
+            for (int i = 0; i < 50; i++) {
+                document.put("key" + i, "a long enough value to make the whole file bigger than its changes " + i);
+            }
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            assertEquals(50, Files.readAllLines(written).size());
+
+            // unchanged, only a delta with nothing in it is sent and the server leaves the file alone
+            FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+            Files.setLastModifiedTime(written, old);
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            assertEquals(old, Files.getLastModifiedTime(written));
+
+            document.put("key3", "changed");
+            document.remove("key4");
+            document.put("key50", "added");
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            List<String> lines = Files.readAllLines(written);
+            assertEquals(50, lines.size());
+            assertTrue(lines.contains("key3 = changed"));
+            assertTrue(lines.contains("key50 = added"));
+            assertFalse(lines.stream().anyMatch(line -> line.startsWith("key4 ")));
+
+            // the server's copy changed behind the client's back, the delta is refused with 409 and the whole file sent
+            Files.writeString(written, "key0 = someone else's\n");
+            document.put("key5", "changed again");
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            lines = Files.readAllLines(written);
+            assertEquals(50, lines.size());
+            assertTrue(lines.contains("key5 = changed again"));
+            assertTrue(lines.contains("key3 = changed"));
+        } finally {
+            dirWatcher.shutdown();
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testDeltasOnlyGoToServersThatTakeThem() throws Exception {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean supportsDeltas = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/json", exchange -> {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                // the health check
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getRequestBody().readAllBytes();
+            boolean delta = exchange.getRequestHeaders().getFirst(DocumentDelta.BASE_HEADER) != null;
+            received.add(delta ? "delta" : "whole");
+            if (supportsDeltas.get()) {
+                exchange.getResponseHeaders().set(DocumentDelta.SUPPORTED_HEADER, "1");
+            }
+            // deltas are refused as malformed, which must not count as stored
+            exchange.sendResponseHeaders(delta ? 400 : 200, -1);
+            exchange.close();
+        });
+        server.start();
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", tmpDir + "/deltaSupportWatch");
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "http://localhost:" + server.getAddress().getPort() + "/json");
+        props.setProperty("deltaSync", "true");
+        DirWatcher dirWatcher = new DirWatcher(props);
+        ServerRing servers = dirWatcher.tenants.get(WatchConfig.DEFAULT_TENANT).servers;
+        try {
+            Map<String, String> document = new LinkedHashMap<>();
+            document.put("sourceFile", "support.properties");
+            for (int i = 0; i < 50; i++) {
+                document.put("key" + i, "a long enough value to make the whole file bigger than its changes " + i);
+            }
+            // a server that never said it takes deltas only gets whole files
+            for (int i = 0; i < 2; i++) {
+                document.put("key0", "version " + i);
+                dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(List.of("whole", "whole"), received);
+
+            supportsDeltas.set(true);
+            document.put("key0", "version 2");
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            // now it has, but answers the delta with 400, so the file goes again whole
+            document.put("key0", "version 3");
+            dirWatcher.sendMapToServer(servers, document, null).get(10, TimeUnit.SECONDS);
+            assertEquals(List.of("whole", "whole", "whole", "delta", "whole"), received);
+        } finally {
+            dirWatcher.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFramedTransportDeletesFilesOnceAcked() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(tmpDir + "/framedOutput").build();
+        server.start().get(10, TimeUnit.SECONDS);
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", tmpDir + "/framedWatch");
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "tcp://localhost:" + server.getFramedPort());
+        DirWatcher dirWatcher = new DirWatcher(props);
+
+        Thread thread = new Thread(dirWatcher);
+        thread.start();
+        try {
+            Thread.sleep(500); // give the watcher time to register the dir
+            List<File> createdFiles = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                createdFiles.add(createTestFile(tmpDir + "/framedWatch", "framed", "properties"));
+            }
+            for (File createdFile : createdFiles) {
+                for (int i = 0; i < 100 && createdFile.exists(); i++) {
+                    Thread.sleep(50);
+                }
+                assertFalse(createdFile.exists(), "File should have been deleted once acked: " + createdFile);
+                File written = new File(tmpDir + "/framedOutput/" + createdFile.getName());
+                assertEquals(3, Files.readAllLines(written.toPath()).size());
+            }
+            assertEquals(20, dirWatcher.tenants.get(WatchConfig.DEFAULT_TENANT).servers.getNodes().get(0).getSent());
+        } finally {
+            thread.interrupt();
+            thread.join();
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testEveryStageIsRecordedUnderOneCorrelationId() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(tmpDir + "/tracedOutput").build();
+        server.start().get(10, TimeUnit.SECONDS);
+        Properties props = new Properties();
+        props.setProperty("watchDirectory", tmpDir + "/tracedWatch");
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("scannerServerURL", "http://localhost:" + server.getPort() + "/json");
+        DirWatcher dirWatcher = new DirWatcher(props);
+
+        Path recordingFile = Files.createTempFile("dirwatcher", ".jfr");
+        Thread thread = new Thread(dirWatcher);
+        try (Recording recording = new Recording()) {
+            for (String event : List.of("FileDetected", "FileDequeued", "FileRead", "Upload", "UploadReceived", "DocumentStored", "DocumentWritten")) {
+                recording.enable("org.caltaylor." + event).withoutThreshold();
+            }
+            recording.start();
+            thread.start();
+            Thread.sleep(500); // give the watcher time to register the dir
+            File createdFile = createTestFile(tmpDir + "/tracedWatch", "traced", "properties");
+            for (int i = 0; i < 100 && createdFile.exists(); i++) {
+                Thread.sleep(50);
+            }
+            assertFalse(createdFile.exists(), "File should have been uploaded: " + createdFile);
+            recording.stop();
+            recording.dump(recordingFile);
+
+            Set<String> correlationIds = new TreeSet<>();
+            Set<String> stages = new TreeSet<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+                if (createdFile.getName().equals(event.getString("sourceFile"))) {
+                    String stage = event.getEventType().getName().substring("org.caltaylor.".length());
+                    stages.add(stage);
+                    correlationIds.add(event.getString("correlationId"));
+                    if (stage.startsWith("Document")) {
+                        assertTrue(event.getLong("bytes") > 0, stage + " without bytes");
+                    }
+                }
+            }
+            assertEquals(new TreeSet<>(List.of("DocumentStored", "DocumentWritten", "FileDequeued", "FileDetected", "FileRead", "Upload", "UploadReceived")), stages);
+            // the id the client assigned at detection is the one the server recorded
+            assertEquals(1, correlationIds.size(), "Expected one correlation id, got " + correlationIds);
+        } finally {
+            thread.interrupt();
+            thread.join();
+            server.drain(Duration.ofSeconds(10));
+            Files.deleteIfExists(recordingFile);
+        }
+    }
+
     public static Properties generateDirWatcherConfigFileInDir(String configDir) throws IOException {
         //find the file in src/test/resources
         String configFileName = DirWatcher.getConfigFileName();
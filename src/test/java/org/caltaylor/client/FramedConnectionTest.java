@@ -0,0 +1,153 @@
+package org.caltaylor.client;
+
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.Frame;
+import org.caltaylor.common.SymbolTable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** FramedConnectionTest plays the server end of the framed transport by hand, so it can choose
+ * exactly when and how documents are acknowledged.
+ * */
+public class FramedConnectionTest {
+    private ServerSocketChannel serverChannel;
+
+    @BeforeEach
+    public void beforeEach() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @AfterEach
+    public void afterEach() throws IOException {
+        serverChannel.close();
+    }
+
+    private int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private static byte[] json(int i) {
+        return ("{\"sourceFile\": \"f" + i + ".properties\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDocumentsArePipelinedAndAckedCumulatively() throws Exception {
+        try (FramedConnection connection = new FramedConnection("localhost", port())) {
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            // nothing is acked yet, yet all three go out without waiting
+            for (int i = 0; i < 3; i++) {
+                sent.add(connection.send(json(i)));
+            }
+            try (SocketChannel server = serverChannel.accept()) {
+                List<Long> seqs = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    Frame frame = Frame.read(server);
+                    assertEquals(Frame.DOCUMENT, frame.getType());
+                    seqs.add(frame.getSeq());
+                }
+                assertEquals(List.of(1L, 2L, 3L), seqs);
+                assertEquals(3, connection.getUnacknowledged());
+
+                new Frame(Frame.REJECT, 2, "disk full".getBytes(StandardCharsets.UTF_8)).write(server);
+                new Frame(Frame.ACK, 3, new byte[0]).write(server);
+
+                sent.get(0).get(5, TimeUnit.SECONDS);
+                sent.get(2).get(5, TimeUnit.SECONDS);
+                ExecutionException rejected = assertThrows(ExecutionException.class, () -> sent.get(1).get(5, TimeUnit.SECONDS));
+                assertTrue(rejected.getCause().getMessage().contains("disk full"));
+                assertEquals(0, connection.getUnacknowledged());
+            }
+        }
+    }
+
+    @Test
+    public void testLostConnectionFailsUnackedAndReconnects() throws Exception {
+        try (FramedConnection connection = new FramedConnection("localhost", port())) {
+            CompletableFuture<Void> first = connection.send(json(1));
+            CompletableFuture<Void> second = connection.send(json(2));
+            try (SocketChannel server = serverChannel.accept()) {
+                Frame.read(server);
+                Frame.read(server);
+                new Frame(Frame.ACK, 1, new byte[0]).write(server);
+                first.get(5, TimeUnit.SECONDS);
+            }
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+
+            CompletableFuture<Void> third = connection.send(json(3));
+            try (SocketChannel server = serverChannel.accept()) {
+                Frame frame = Frame.read(server);
+                // numbering carries on after a reconnect
+                assertEquals(3, frame.getSeq());
+                new Frame(Frame.ACK, 3, new byte[0]).write(server);
+                third.get(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void testMissingAckTimesOutAndFreesWindow() throws Exception {
+        try (FramedConnection connection = new FramedConnection("localhost", port(), 1, 200)) {
+            CompletableFuture<Void> unacked = connection.send(json(1));
+            try (SocketChannel server = serverChannel.accept()) {
+                Frame.read(server);
+                assertThrows(ExecutionException.class, () -> unacked.get(5, TimeUnit.SECONDS));
+                // the window of one is free again, so this doesn't block
+                CompletableFuture<Void> next = connection.send(json(2));
+                assertFalse(next.isDone());
+            }
+        }
+    }
+
+    @Test
+    public void testEncodedDocumentsDefineKeysOncePerConnection() throws Exception {
+        Map<String, String> document = Map.of("sourceFile", "f1.properties", "key1", "value1");
+        try (FramedConnection connection = new FramedConnection("localhost", port())) {
+            CompletableFuture<Void> first = connection.sendEncoded(document, json(1));
+            CompletableFuture<Void> second = connection.sendEncoded(document, json(1));
+            CompletableFuture<Void> lost = connection.sendEncoded(document, json(1));
+            try (SocketChannel server = serverChannel.accept()) {
+                DictionaryEncoding.Decoder decoder = new DictionaryEncoding.Decoder(new SymbolTable());
+                Frame definitions = Frame.read(server);
+                assertEquals(Frame.DEFINE_KEYS, definitions.getType());
+                decoder.define(definitions.getPayload());
+                for (long seq = 1; seq <= 3; seq++) {
+                    Frame frame = Frame.read(server);
+                    assertEquals(Frame.ENCODED_DOCUMENT, frame.getType());
+                    assertEquals(seq, frame.getSeq());
+                    assertEquals(Map.of("key1", "value1"), decoder.decode(frame.getPayload()).getValues());
+                }
+                new Frame(Frame.ACK, 2, new byte[0]).write(server);
+                first.get(5, TimeUnit.SECONDS);
+                second.get(5, TimeUnit.SECONDS);
+            }
+            assertThrows(ExecutionException.class, () -> lost.get(5, TimeUnit.SECONDS));
+
+            // a new connection starts a new dictionary, so the keys are defined again
+            CompletableFuture<Void> resent = connection.sendEncoded(document, json(1));
+            try (SocketChannel server = serverChannel.accept()) {
+                assertEquals(Frame.DEFINE_KEYS, Frame.read(server).getType());
+                Frame frame = Frame.read(server);
+                new Frame(Frame.ACK, frame.getSeq(), new byte[0]).write(server);
+                resent.get(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.caltaylor.client;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** ServerRingTest checks the consistent hash routing, failover ordering and health checks
+ * used by DirWatcher to spread uploads over several JsonServer instances.
+ * */
+public class ServerRingTest {
+    private static final String THREE_SERVERS = "http://localhost:1401/json,http://localhost:1402/json,http://localhost:1403/json";
+
+    @Test
+    public void testSameSourceFileAlwaysRoutesToSameNode() {
+        ServerRing ring = new ServerRing(THREE_SERVERS, 160, 0);
+        for (int i = 0; i < 100; i++) {
+            String sourceFile = "testPrefix-" + i + ".properties";
+            assertEquals(ring.nodeFor(sourceFile), ring.nodeFor(sourceFile));
+        }
+    }
+
+    @Test
+    public void testDocumentsSpreadOverAllNodes() {
+        ServerRing ring = new ServerRing(THREE_SERVERS, 160, 0);
+        Map<String, Integer> counts = new HashMap<>();
+        int total = 3000;
+        for (int i = 0; i < total; i++) {
+            counts.merge(ring.nodeFor("testPrefix-" + i + ".properties").getUrl(), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            System.out.println("testDocumentsSpreadOverAllNodes " + entry.getKey() + "=" + entry.getValue());
+            assertTrue(entry.getValue() > total / 6, "Node got too few documents: " + entry);
+        }
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToNewNode() {
+        ServerRing before = new ServerRing(THREE_SERVERS, 160, 0);
+        ServerRing after = new ServerRing(THREE_SERVERS + ",http://localhost:1404/json", 160, 0);
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String sourceFile = "testPrefix-" + i + ".properties";
+            String oldUrl = before.nodeFor(sourceFile).getUrl();
+            String newUrl = after.nodeFor(sourceFile).getUrl();
+            if (!oldUrl.equals(newUrl)) {
+                assertEquals("http://localhost:1404/json", newUrl);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < 500, "Unexpected number of moved keys: " + moved);
+    }
+
+    @Test
+    public void testFailoverToNextNodeWhenOwnerFails() {
+        ServerRing ring = new ServerRing(THREE_SERVERS, 160, 0);
+        String sourceFile = "failover.properties";
+        List<ServerRing.ServerNode> candidates = ring.candidatesFor(sourceFile);
+        assertEquals(3, candidates.size());
+        ServerRing.ServerNode owner = candidates.get(0);
+
+        owner.onSend();
+        owner.onFailure();
+
+        List<ServerRing.ServerNode> afterFailure = ring.candidatesFor(sourceFile);
+        assertEquals(candidates.get(1), afterFailure.get(0));
+        assertEquals(owner, afterFailure.get(2));
+        assertFalse(owner.isHealthy());
+        assertEquals(1, owner.getFailed());
+        assertEquals(0, owner.getInFlight());
+
+        // without health checks only a successful send brings it back
+        owner.onSuccess(owner.onSend(), 10);
+        assertTrue(owner.isHealthy());
+        assertEquals(owner, ring.candidatesFor(sourceFile).get(0));
+    }
+
+    @Test
+    public void testNodeStatsCountSends() {
+        ServerRing ring = new ServerRing("http://localhost:1401/json", 10, 0);
+        ServerRing.ServerNode node = ring.nodeFor("stats.properties");
+        node.onSuccess(node.onSend(), 42);
+        node.onSuccess(node.onSend(), 8);
+        assertEquals(2, node.getSent());
+        assertEquals(50, node.getBytesSent());
+        assertTrue(ring.getNodeStats().get("http://localhost:1401/json").contains("sent=2"));
+    }
+
+    @Test
+    public void testHealthCheckMarksUnreachableAndDrainingNodesDown() throws IOException {
+        HttpServer up = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        up.createContext("/json", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        HttpServer draining = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        draining.createContext("/json", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        up.start();
+        draining.start();
+        try (ServerSocket closed = new ServerSocket(0)) {
+            int downPort = closed.getLocalPort();
+            closed.close();
+            String upUrl = "http://localhost:" + up.getAddress().getPort() + "/json";
+            String drainingUrl = "http://localhost:" + draining.getAddress().getPort() + "/json";
+            String downUrl = "http://localhost:" + downPort + "/json";
+            ServerRing ring = new ServerRing(upUrl + "," + drainingUrl + "," + downUrl, 50, 0);
+
+            ring.checkHealth();
+
+            for (ServerRing.ServerNode node : ring.getNodes()) {
+                assertEquals(node.getUrl().equals(upUrl), node.isHealthy(), node.getUrl());
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(upUrl, ring.nodeFor("health-" + i).getUrl());
+            }
+        } finally {
+            up.stop(0);
+            draining.stop(0);
+        }
+    }
+
+    @Test
+    public void testRejectsEmptyServerList() {
+        assertThrows(IllegalArgumentException.class, () -> new ServerRing(" , ", 160, 0));
+    }
+
+    @Test
+    public void testDuplicateUrlsAreIgnored() {
+        ServerRing ring = new ServerRing("http://localhost:1401/json, http://localhost:1401/json", 160, 0);
+        assertEquals(1, ring.getNodes().size());
+        assertNotEquals(null, ring.nodeFor("x"));
+    }
+}
@@ -0,0 +1,219 @@
+package org.caltaylor.client;
+
+import org.caltaylor.server.JsonServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** SoakTest runs a client and a server in one JVM under a steady stream of files, one tenant over http and one over
+ * the framed transport, and fails if open file descriptors, threads or the heap left after a garbage collection keep growing.
+ * Those leaks only show after hours or days, long after every other test has passed.
+ * Every 25th file is larger than the server accepts, so the refusal paths are soaked as well.
+ * It is tagged soak and left out of the normal test run, run it with
+ * ./gradlew soakTest -Dsoak.durationSeconds=3600 -Dsoak.filesPerSecond=100
+ * The growth allowed is set with soak.maxFdGrowth, soak.maxThreadGrowth and soak.maxHeapGrowthMb,
+ * and is measured from the end of a warm up so pools and caches filling up once don't count.
+ * */
+@Tag("soak")
+public class SoakTest {
+    private static final String tmpDir = "/tmp/soak";
+    private static final long durationSeconds = Long.getLong("soak.durationSeconds", 60);
+    private static final int filesPerSecond = Integer.getInteger("soak.filesPerSecond", 50);
+    private static final long maxFdGrowth = Long.getLong("soak.maxFdGrowth", 25);
+    private static final long maxThreadGrowth = Long.getLong("soak.maxThreadGrowth", 10);
+    private static final long maxHeapGrowthMb = Long.getLong("soak.maxHeapGrowthMb", 32);
+    private static final int oversizedEvery = 25;
+    private static final int maxBodyBytes = 4096;
+
+    /** One reading of the resources the process holds. */
+    private static class Sample {
+        final long elapsedMillis;
+        final long openFiles;
+        final long threads;
+        final long heapAfterGc;
+
+        Sample(long elapsedMillis) {
+            this.elapsedMillis = elapsedMillis;
+            this.openFiles = openFileDescriptors();
+            this.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            this.heapAfterGc = heapAfterGc();
+        }
+
+        @Override
+        public String toString() {
+            return "t=" + elapsedMillis / 1000 + "s fds=" + openFiles + " threads=" + threads + " heapAfterGcMb=" + heapAfterGc / (1024 * 1024);
+        }
+    }
+
+    /** Open descriptors of this process, -1 where there is no /proc to count them in. */
+    private static long openFileDescriptors() {
+        Path fdDir = Path.of("/proc/self/fd");
+        if (!Files.isDirectory(fdDir)) {
+            return -1;
+        }
+        try (Stream<Path> fds = Files.list(fdDir)) {
+            return fds.count();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Heap in use right after a full collection, what the live objects take rather than what garbage happens to be around. */
+    private static long heapAfterGc() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /** The middle of three readings, so one sample taken mid burst doesn't decide the result. */
+    private static long median(List<Sample> samples, int from, ToLongFunction<Sample> value) {
+        long[] values = samples.subList(from, from + 3).stream().mapToLong(value).toArray();
+        Arrays.sort(values);
+        return values[1];
+    }
+
+    private static void deleteTree(File dir) throws IOException {
+        if (dir.exists()) {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static void writeFile(Path watchDir, long n) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        contents.append("key1 = value").append(n).append('\n');
+        contents.append("key2 = ").append(n * 31).append('\n');
+        contents.append("other = not sent\n");
+        if (n % oversizedEvery == 0) {
+            contents.append("keyLarge = ").append("x".repeat(2 * maxBodyBytes)).append('\n');
+        }
+        // written elsewhere and moved in, so the watcher never sees half a file
+        Path staged = Files.createTempFile(Path.of(tmpDir), "staged", ".tmp");
+        Files.writeString(staged, contents, StandardCharsets.UTF_8);
+        Files.move(staged, watchDir.resolve("soak-" + n + ".properties"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Test
+    public void testResourceUsageStaysFlat() throws Exception {
+        deleteTree(new File(tmpDir));
+        Path httpWatch = Files.createDirectories(Path.of(tmpDir, "httpWatch"));
+        Path framedWatch = Files.createDirectories(Path.of(tmpDir, "framedWatch"));
+        File output = new File(tmpDir, "output");
+
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(output.getPath()).maxBodyBytes(maxBodyBytes).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        Properties props = new Properties();
+        props.setProperty("tenants", "http, framed");
+        props.setProperty("watchDirectoryFilterPattern", "key.*");
+        props.setProperty("tenant.http.watchDirectory", httpWatch.toString());
+        props.setProperty("tenant.http.scannerServerURL", "http://localhost:" + server.getPort() + "/json");
+        props.setProperty("tenant.framed.watchDirectory", framedWatch.toString());
+        props.setProperty("tenant.framed.scannerServerURL", "tcp://localhost:" + server.getFramedPort());
+        DirWatcher dirWatcher = new DirWatcher(props);
+        Thread watcher = new Thread(dirWatcher, "soak-watcher");
+        watcher.start();
+
+        ScheduledExecutorService load = Executors.newSingleThreadScheduledExecutor();
+        AtomicLong written = new AtomicLong();
+        List<Sample> samples = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(500); // give the watcher time to register both dirs
+            load.scheduleAtFixedRate(() -> {
+                long n = written.incrementAndGet();
+                try {
+                    writeFile(n % 2 == 0 ? httpWatch : framedWatch, n);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, 0, 1_000_000_000L / filesPerSecond, TimeUnit.NANOSECONDS);
+
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            while (System.nanoTime() < end) {
+                Thread.sleep(1000);
+                // the output would otherwise grow with the run, which isn't what is being measured
+                File[] outputs = output.listFiles();
+                if (outputs != null) {
+                    for (File file : outputs) {
+                        file.delete();
+                    }
+                }
+                Sample sample = new Sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                samples.add(sample);
+                System.out.println("soak " + sample);
+            }
+            load.shutdown();
+            assertTrue(load.awaitTermination(10, TimeUnit.SECONDS));
+
+            // everything but the oversized files is sent and deleted once the load stops
+            long oversized = written.get() / oversizedEvery;
+            long remaining = 0;
+            for (int i = 0; i < 300; i++) {
+                remaining = httpWatch.toFile().list().length + framedWatch.toFile().list().length;
+                if (remaining <= oversized) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertEquals(oversized, remaining, "Files left behind after " + written.get() + " were written");
+        } finally {
+            load.shutdownNow();
+            watcher.interrupt();
+            watcher.join();
+            server.drain(Duration.ofSeconds(10));
+        }
+
+        assertTrue(samples.size() >= 10, "Run for at least 10 seconds to have enough samples, ran " + samples.size());
+        // the first fifth, at most 30 seconds, is warm up while thread pools, connections and caches fill
+        long warmUpMillis = Math.min(30_000, TimeUnit.SECONDS.toMillis(durationSeconds) / 5);
+        int baseline = 0;
+        while (samples.get(baseline).elapsedMillis < warmUpMillis && baseline < samples.size() - 6) {
+            baseline++;
+        }
+        int last = samples.size() - 3;
+        long fdGrowth = median(samples, last, s -> s.openFiles) - median(samples, baseline, s -> s.openFiles);
+        long threadGrowth = median(samples, last, s -> s.threads) - median(samples, baseline, s -> s.threads);
+        long heapGrowthMb = (median(samples, last, s -> s.heapAfterGc) - median(samples, baseline, s -> s.heapAfterGc)) / (1024 * 1024);
+        System.out.println("soak wrote " + written.get() + " files, growth after warm up: fds=" + fdGrowth + " threads=" + threadGrowth + " heapMb=" + heapGrowthMb);
+
+        if (samples.get(0).openFiles >= 0) {
+            assertTrue(fdGrowth <= maxFdGrowth, "Open file descriptors grew by " + fdGrowth + ", more than " + maxFdGrowth);
+        }
+        assertTrue(threadGrowth <= maxThreadGrowth, "Threads grew by " + threadGrowth + ", more than " + maxThreadGrowth);
+        assertTrue(heapGrowthMb <= maxHeapGrowthMb, "Heap after gc grew by " + heapGrowthMb + "MB, more than " + maxHeapGrowthMb);
+    }
+}
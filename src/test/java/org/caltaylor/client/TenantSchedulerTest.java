@@ -0,0 +1,135 @@
+package org.caltaylor.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** TenantSchedulerTest checks that tenants get worker time in proportion to their weight,
+ * that a tenant with a large backlog can't starve another, and that per tenant priorities are honoured.
+ * */
+public class TenantSchedulerTest {
+
+    private static TenantScheduler.FileTask task(String tenant, String name, long size, long lastModified) {
+        return new TenantScheduler.FileTask(tenant, Path.of(name), size, lastModified);
+    }
+
+    @Test
+    public void testWeightsShareWorkers() {
+        TenantScheduler scheduler = new TenantScheduler();
+        for (int i = 0; i < 100; i++) {
+            scheduler.add(task("heavy", "h" + i, 1, i), 3, TenantScheduler.Priority.FIFO);
+            scheduler.add(task("light", "l" + i, 1, i), 1, TenantScheduler.Priority.FIFO);
+        }
+        Map<String, Integer> picked = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            picked.merge(scheduler.poll().tenant, 1, Integer::sum);
+        }
+        assertEquals(30, (int) picked.get("heavy"));
+        assertEquals(10, (int) picked.get("light"));
+        assertEquals(160, scheduler.size());
+    }
+
+    @Test
+    public void testBusyTenantDoesNotStarveQuietOne() {
+        TenantScheduler scheduler = new TenantScheduler();
+        for (int i = 0; i < 1000; i++) {
+            scheduler.add(task("busy", "b" + i, 1, i), 1, TenantScheduler.Priority.FIFO);
+        }
+        // drain part of the backlog before the quiet tenant shows up, it must not have to wait for the rest
+        for (int i = 0; i < 100; i++) {
+            scheduler.poll();
+        }
+        for (int i = 0; i < 5; i++) {
+            scheduler.add(task("quiet", "q" + i, 1, i), 1, TenantScheduler.Priority.FIFO);
+        }
+        int quietServed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (scheduler.poll().tenant.equals("quiet")) {
+                quietServed++;
+            }
+        }
+        assertEquals(5, quietServed);
+    }
+
+    @Test
+    public void testIdleTenantDoesNotBankTurns() {
+        TenantScheduler scheduler = new TenantScheduler();
+        scheduler.add(task("early", "e0", 1, 0), 1, TenantScheduler.Priority.FIFO);
+        scheduler.poll();
+        for (int i = 0; i < 100; i++) {
+            scheduler.add(task("steady", "s" + i, 1, i), 1, TenantScheduler.Priority.FIFO);
+            scheduler.poll();
+        }
+        // early was idle for 100 turns, when it comes back it alternates with steady instead of running 100 in a row
+        for (int i = 0; i < 10; i++) {
+            scheduler.add(task("early", "e" + (i + 1), 1, i), 1, TenantScheduler.Priority.FIFO);
+            scheduler.add(task("steady", "s" + (i + 100), 1, i), 1, TenantScheduler.Priority.FIFO);
+        }
+        int earlyInFirstTen = 0;
+        for (int i = 0; i < 10; i++) {
+            if (scheduler.poll().tenant.equals("early")) {
+                earlyInFirstTen++;
+            }
+        }
+        assertTrue(earlyInFirstTen <= 6, "Idle tenant caught up on missed turns: " + earlyInFirstTen);
+    }
+
+    @Test
+    public void testSmallestFirst() {
+        TenantScheduler scheduler = new TenantScheduler();
+        scheduler.add(task("t", "large", 5000, 1), 1, TenantScheduler.Priority.SMALLEST_FIRST);
+        scheduler.add(task("t", "small", 10, 2), 1, TenantScheduler.Priority.SMALLEST_FIRST);
+        scheduler.add(task("t", "medium", 300, 3), 1, TenantScheduler.Priority.SMALLEST_FIRST);
+        assertEquals("small", scheduler.poll().file.toString());
+        assertEquals("medium", scheduler.poll().file.toString());
+        assertEquals("large", scheduler.poll().file.toString());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void testOldestFirst() {
+        TenantScheduler scheduler = new TenantScheduler();
+        scheduler.add(task("t", "newest", 1, 300), 1, TenantScheduler.Priority.OLDEST_FIRST);
+        scheduler.add(task("t", "oldest", 1, 100), 1, TenantScheduler.Priority.OLDEST_FIRST);
+        scheduler.add(task("t", "middle", 1, 200), 1, TenantScheduler.Priority.OLDEST_FIRST);
+        assertEquals("oldest", scheduler.poll().file.toString());
+        assertEquals("middle", scheduler.poll().file.toString());
+        assertEquals("newest", scheduler.poll().file.toString());
+    }
+
+    @Test
+    public void testFifoAndPriorityChange() {
+        TenantScheduler scheduler = new TenantScheduler();
+        scheduler.add(task("t", "first", 500, 1), 1, TenantScheduler.Priority.FIFO);
+        scheduler.add(task("t", "second", 5, 2), 1, TenantScheduler.Priority.FIFO);
+        assertEquals("first", scheduler.poll().file.toString());
+        scheduler.add(task("t", "third", 50, 3), 1, TenantScheduler.Priority.SMALLEST_FIRST);
+        scheduler.add(task("t", "fourth", 500, 4), 1, TenantScheduler.Priority.SMALLEST_FIRST);
+        assertEquals("second", scheduler.poll().file.toString());
+        assertEquals("third", scheduler.poll().file.toString());
+        assertEquals(1, (int) scheduler.queuedPerTenant().get("t"));
+    }
+
+    @Test
+    public void testRemovedTenantsAreDroppedOnceEmpty() {
+        TenantScheduler scheduler = new TenantScheduler();
+        scheduler.add(task("kept", "a", 1, 1), 1, TenantScheduler.Priority.FIFO);
+        scheduler.add(task("idle", "b", 1, 2), 1, TenantScheduler.Priority.FIFO);
+        scheduler.add(task("busy", "c", 1, 3), 1, TenantScheduler.Priority.FIFO);
+        assertEquals("a", scheduler.poll().file.toString());
+        assertEquals("b", scheduler.poll().file.toString());
+
+        scheduler.retainTenants(Set.of("kept"));
+        assertEquals(Set.of("kept", "busy"), scheduler.queuedPerTenant().keySet());
+        // the removed tenant's last file is still handed out, then its queue goes
+        assertEquals("c", scheduler.poll().file.toString());
+        assertEquals(Set.of("kept"), scheduler.queuedPerTenant().keySet());
+    }
+}
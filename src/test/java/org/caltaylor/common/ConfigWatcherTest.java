@@ -0,0 +1,79 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/** ConfigWatcherTest edits a properties file on disk and checks the change reaches the listener,
+ * and that rejected or unchanged files leave the current configuration alone.
+ * */
+public class ConfigWatcherTest {
+
+    @Test
+    public void testChangeIsDeliveredToListener() throws Exception {
+        Path dir = Files.createTempDirectory("configwatcher");
+        Path configFile = dir.resolve("test.properties");
+        Files.writeString(configFile, "threads = 1\n");
+        BlockingQueue<Properties> changes = new LinkedBlockingQueue<>();
+
+        try (ConfigWatcher watcher = new ConfigWatcher(configFile, ConfigWatcher.load(configFile), changes::add)) {
+            watcher.start();
+            Files.writeString(configFile, "threads = 8\n");
+
+            Properties changed = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(changed, "Listener was not called after the file changed");
+            assertEquals("8", changed.getProperty("threads"));
+        }
+    }
+
+    @Test
+    public void testUnchangedFileIsNotDelivered() throws Exception {
+        Path dir = Files.createTempDirectory("configwatcher");
+        Path configFile = dir.resolve("test.properties");
+        Files.writeString(configFile, "threads = 1\n");
+        BlockingQueue<Properties> changes = new LinkedBlockingQueue<>();
+
+        try (ConfigWatcher watcher = new ConfigWatcher(configFile, ConfigWatcher.load(configFile), changes::add)) {
+            watcher.start();
+            // touching the file, or writing a different file in the same dir, is not a change
+            Files.writeString(configFile, "threads = 1\n");
+            Files.writeString(dir.resolve("other.properties"), "threads = 3\n");
+
+            assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testRejectedChangeIsRetriedOnNextEdit() throws IOException {
+        Path dir = Files.createTempDirectory("configwatcher");
+        Path configFile = dir.resolve("test.properties");
+        Files.writeString(configFile, "threads = 1\n");
+        BlockingQueue<Properties> accepted = new LinkedBlockingQueue<>();
+
+        ConfigWatcher watcher = new ConfigWatcher(configFile, ConfigWatcher.load(configFile), props -> {
+            Integer.parseInt(props.getProperty("threads"));
+            accepted.add(props);
+        });
+        Files.writeString(configFile, "threads = many\n");
+        watcher.reload();
+        assertEquals(0, accepted.size());
+
+        Files.writeString(configFile, "threads = 4\n");
+        watcher.reload();
+        assertEquals("4", accepted.remove().getProperty("threads"));
+
+        // reloading the same content again is a no-op
+        watcher.reload();
+        assertEquals(0, accepted.size());
+    }
+}
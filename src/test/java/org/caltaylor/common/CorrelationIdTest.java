@@ -0,0 +1,27 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/** CorrelationIdTest checks ids are unique and that only ids shaped like ours are taken from a header. */
+public class CorrelationIdTest {
+
+    @Test
+    public void testIdsAreUniqueAndAcceptedBack() {
+        String first = CorrelationId.next();
+        String second = CorrelationId.next();
+        assertNotEquals(first, second);
+        assertEquals(first, CorrelationId.fromHeader(first));
+    }
+
+    @Test
+    public void testUnexpectedHeaderValuesAreDropped() {
+        assertNull(CorrelationId.fromHeader(null));
+        assertNull(CorrelationId.fromHeader(""));
+        assertNull(CorrelationId.fromHeader("id\nfake log line"));
+        assertNull(CorrelationId.fromHeader("x".repeat(65)));
+    }
+}
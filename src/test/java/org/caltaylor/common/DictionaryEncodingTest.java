@@ -0,0 +1,83 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** DictionaryEncodingTest encodes documents on one side of a connection and decodes them on the other. */
+public class DictionaryEncodingTest {
+
+    private static Map<String, String> document(String sourceFile, String... keysAndValues) {
+        Map<String, String> document = new LinkedHashMap<>();
+        document.put(DictionaryEncoding.SOURCE_FILE_KEY, sourceFile);
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            document.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return document;
+    }
+
+    @Test
+    public void testKeysAreDefinedOnceAndDecodedInterned() throws IOException {
+        DictionaryEncoding.Encoder encoder = new DictionaryEncoding.Encoder();
+        SymbolTable symbols = new SymbolTable();
+        DictionaryEncoding.Decoder decoder = new DictionaryEncoding.Decoder(symbols);
+
+        DictionaryEncoding.Encoded first = encoder.encode(document("a.properties", "key1", "v1", "key2", "v\u00e4lue"));
+        assertNotNull(first.getDefinitions());
+        decoder.define(first.getDefinitions());
+        DictionaryEncoding.Decoded decoded = decoder.decode(first.getDocument());
+        assertEquals("a.properties", decoded.getSourceFile());
+        assertEquals(Map.of("key1", "v1", "key2", "v\u00e4lue"), decoded.getValues());
+
+        // the second document only uses known keys, so nothing is defined and no key text is sent
+        DictionaryEncoding.Encoded second = encoder.encode(document("b.properties", "key2", "x", "key1", "y"));
+        assertNull(second.getDefinitions());
+        assertTrue(!new String(second.getDocument(), StandardCharsets.UTF_8).contains("key"));
+        DictionaryEncoding.Decoded secondDecoded = decoder.decode(second.getDocument());
+        assertEquals(Map.of("key1", "y", "key2", "x"), secondDecoded.getValues());
+        for (String key : secondDecoded.getValues().keySet()) {
+            assertSame(symbols.intern(key), key);
+        }
+
+        DictionaryEncoding.Encoded third = encoder.encode(document("c.properties", "key1", "z", "key3", "w"));
+        decoder.define(third.getDefinitions());
+        assertEquals(Map.of("key1", "z", "key3", "w"), decoder.decode(third.getDocument()).getValues());
+        assertEquals(3, decoder.size());
+    }
+
+    @Test
+    public void testDecoderOutOfStepIsAnError() {
+        DictionaryEncoding.Encoder encoder = new DictionaryEncoding.Encoder();
+        DictionaryEncoding.Decoder decoder = new DictionaryEncoding.Decoder(new SymbolTable());
+        DictionaryEncoding.Encoded first = encoder.encode(document("a.properties", "key1", "v1"));
+        // the definitions never arrived
+        assertThrows(IOException.class, () -> decoder.decode(first.getDocument()));
+        DictionaryEncoding.Encoded second = encoder.encode(document("b.properties", "key2", "v2"));
+        assertThrows(IOException.class, () -> decoder.define(second.getDefinitions()));
+        byte[] truncated = Arrays.copyOf(first.getDocument(), first.getDocument().length - 1);
+        assertThrows(IOException.class, () -> decoder.decode(truncated));
+    }
+
+    @Test
+    public void testFullDictionaryFallsBackToJson() {
+        DictionaryEncoding.Encoder encoder = new DictionaryEncoding.Encoder();
+        Map<String, String> many = document("many.properties");
+        for (int i = 0; i < DictionaryEncoding.MAX_KEYS; i++) {
+            many.put("key" + i, "v");
+        }
+        assertNotNull(encoder.encode(many));
+        assertNull(encoder.encode(document("more.properties", "oneTooMany", "v")));
+        assertNotNull(encoder.encode(document("known.properties", "key1", "v")));
+    }
+}
@@ -0,0 +1,54 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** DocumentDeltaTest checks that versions depend on the keys and values but not their order, and that patches apply. */
+public class DocumentDeltaTest {
+
+    @Test
+    public void testVersionIgnoresOrderAndSourceFile() {
+        Map<String, String> forwards = new LinkedHashMap<>();
+        forwards.put("sourceFile", "a.properties");
+        forwards.put("key1", "one");
+        forwards.put("key2", "two");
+        Map<String, String> backwards = new LinkedHashMap<>();
+        backwards.put("key2", "two");
+        backwards.put("key1", "one");
+
+        assertEquals(DocumentDelta.version(forwards), DocumentDelta.version(backwards));
+        assertNotEquals(DocumentDelta.version(backwards), DocumentDelta.version(Map.of("key1", "one", "key2", "TWO")));
+        // the same text split differently between key and value is another document
+        assertNotEquals(DocumentDelta.entryHash("ab", "c"), DocumentDelta.entryHash("a", "bc"));
+        assertEquals(0, DocumentDelta.version(Map.of()));
+    }
+
+    @Test
+    public void testApplyMakesTheNewVersion() {
+        Map<String, String> base = new LinkedHashMap<>();
+        base.put("key1", "one");
+        base.put("key2", "two");
+        base.put("key3", "three");
+        Map<String, String> patched = DocumentDelta.apply(base, Map.of("key2", "deux", "key4", "four"), List.of("key3"));
+
+        assertEquals(List.of("key1", "key2", "key4"), List.copyOf(patched.keySet()));
+        assertEquals(DocumentDelta.version(Map.of("key1", "one", "key2", "deux", "key4", "four")), DocumentDelta.version(patched));
+        assertEquals(3, base.size());
+    }
+
+    @Test
+    public void testHeaderRoundTrip() {
+        for (long version : new long[]{0, 1, -1, Long.MIN_VALUE, 0x1234abcdL}) {
+            assertEquals(version, DocumentDelta.fromHeader(DocumentDelta.toHeader(version)));
+        }
+        assertThrows(NumberFormatException.class, () -> DocumentDelta.fromHeader("not hex"));
+        assertThrows(NumberFormatException.class, () -> DocumentDelta.fromHeader(""));
+    }
+}
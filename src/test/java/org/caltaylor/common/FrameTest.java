@@ -0,0 +1,57 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** FrameTest writes frames to a byte stream and reads them back, including streams that end early or are corrupt. */
+public class FrameTest {
+
+    @Test
+    public void testFramesRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new Frame(Frame.DOCUMENT, 1, "{\"sourceFile\": \"a.properties\"}".getBytes(StandardCharsets.UTF_8)).write(Channels.newChannel(bytes));
+        new Frame(Frame.ACK, 42, new byte[0]).write(Channels.newChannel(bytes));
+
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+        Frame document = Frame.read(channel);
+        assertEquals(Frame.DOCUMENT, document.getType());
+        assertEquals(1, document.getSeq());
+        assertEquals("{\"sourceFile\": \"a.properties\"}", new String(document.getPayload(), StandardCharsets.UTF_8));
+        Frame ack = Frame.read(channel);
+        assertEquals(Frame.ACK, ack.getType());
+        assertEquals(42, ack.getSeq());
+        assertArrayEquals(new byte[0], ack.getPayload());
+        // closed between frames
+        assertNull(Frame.read(channel));
+    }
+
+    @Test
+    public void testStreamEndingInsideFrame() {
+        byte[] encoded = new Frame(Frame.DOCUMENT, 7, new byte[100]).encode().array();
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 10);
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(truncated));
+        assertThrows(EOFException.class, () -> Frame.read(channel));
+    }
+
+    @Test
+    public void testCorruptLengthIsRejected() {
+        byte[] corrupt = ByteBuffer.allocate(4).putInt(Frame.MAX_FRAME_BYTES + 1).array();
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(corrupt));
+        assertThrows(IOException.class, () -> Frame.read(channel));
+        assertThrows(IllegalArgumentException.class, () -> new Frame(Frame.DOCUMENT, 1, new byte[Frame.MAX_FRAME_BYTES]));
+    }
+}
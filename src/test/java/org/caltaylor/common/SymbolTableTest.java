@@ -0,0 +1,67 @@
+package org.caltaylor.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** SymbolTableTest checks that equal keys come back as one instance, also when interned from many threads at once. */
+public class SymbolTableTest {
+
+    @Test
+    public void testEqualKeysShareOneInstance() {
+        SymbolTable symbols = new SymbolTable();
+        String first = symbols.intern(new String("key1"));
+        assertSame(first, symbols.intern(new String("key1")));
+        assertEquals(1, symbols.size());
+    }
+
+    @Test
+    public void testConcurrentInternAgreesOnOneInstance() throws Exception {
+        SymbolTable symbols = new SymbolTable();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(threads.submit(() -> {
+                    Set<String> seen = ConcurrentHashMap.newKeySet();
+                    for (int i = 0; i < 10_000; i++) {
+                        seen.add(symbols.intern(new String("key" + (i % 100))));
+                    }
+                    return seen;
+                }));
+            }
+            List<String> canonical = new ArrayList<>(results.get(0).get());
+            for (Future<Set<String>> result : results) {
+                for (String key : result.get()) {
+                    assertSame(canonical.get(canonical.indexOf(key)), key);
+                }
+            }
+            assertEquals(100, symbols.size());
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullTableStopsGrowing() {
+        SymbolTable symbols = new SymbolTable(2);
+        symbols.intern("a");
+        symbols.intern("b");
+        String c = new String("c");
+        assertSame(c, symbols.intern(c));
+        assertNotSame(c, symbols.intern(new String("c")));
+        assertEquals(2, symbols.size());
+        assertThrows(IllegalArgumentException.class, () -> new SymbolTable(0));
+    }
+}
@@ -0,0 +1,109 @@
+package org.caltaylor.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** AdmissionControlTest reads bodies that break each limit and checks the status they are refused with,
+ * and that the in flight bytes budget is always given back.
+ * */
+public class AdmissionControlTest {
+
+    private static InputStream body(int bytes) {
+        return new ByteArrayInputStream(new byte[bytes]);
+    }
+
+    @Test
+    public void testBodyWithinLimitsIsReadAndReleased() throws IOException {
+        AdmissionControl admission = new AdmissionControl(100, 1000, 10_000);
+        byte[] json = "{\"sourceFile\": \"a\"}".getBytes(StandardCharsets.UTF_8);
+        try (AdmissionControl.Body body = admission.readBody(new ByteArrayInputStream(json), json.length, System.nanoTime())) {
+            assertEquals("{\"sourceFile\": \"a\"}", new String(body.getBytes(), StandardCharsets.UTF_8));
+            assertEquals(json.length, admission.getInFlightBytes());
+        }
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    public void testDeclaredLengthOverLimitIsRefusedBeforeReading() {
+        AdmissionControl admission = new AdmissionControl(100, 1000, 10_000);
+        InputStream neverRead = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("Body should not be read");
+            }
+        };
+        AdmissionControl.Rejected rejected = assertThrows(AdmissionControl.Rejected.class,
+                () -> admission.readBody(neverRead, 101, System.nanoTime()));
+        assertEquals(413, rejected.getStatus());
+        assertEquals(1, admission.getTooLarge());
+    }
+
+    @Test
+    public void testStreamedBodyOverLimitIsCutOff() {
+        AdmissionControl admission = new AdmissionControl(100, 1000, 10_000);
+        AdmissionControl.Rejected rejected = assertThrows(AdmissionControl.Rejected.class,
+                () -> admission.readBody(body(20_000), -1, System.nanoTime()));
+        assertEquals(413, rejected.getStatus());
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    public void testBudgetShedsLoad() throws IOException {
+        AdmissionControl admission = new AdmissionControl(100, 150, 10_000);
+        try (AdmissionControl.Body first = admission.readBody(body(100), 100, System.nanoTime())) {
+            AdmissionControl.Rejected rejected = assertThrows(AdmissionControl.Rejected.class,
+                    () -> admission.readBody(body(100), 100, System.nanoTime()));
+            assertEquals(503, rejected.getStatus());
+            // a streamed body is charged as it arrives, so it is shed too
+            rejected = assertThrows(AdmissionControl.Rejected.class, () -> admission.readBody(body(100), -1, System.nanoTime()));
+            assertEquals(503, rejected.getStatus());
+            assertFalse(admission.admit(60));
+            assertEquals(100, admission.getInFlightBytes());
+        }
+        assertTrue(admission.admit(60));
+        assertEquals(3, admission.getOverBudget());
+    }
+
+    @Test
+    public void testTricklingBodyTimesOut() {
+        AdmissionControl admission = new AdmissionControl(1000, 10_000, 200);
+        InputStream trickle = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return 'a';
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                b[off] = (byte) read();
+                return 1;
+            }
+        };
+        AdmissionControl.Rejected rejected = assertThrows(AdmissionControl.Rejected.class,
+                () -> admission.readBody(trickle, 500, System.nanoTime()));
+        assertEquals(408, rejected.getStatus());
+        assertEquals(0, admission.getInFlightBytes());
+        assertEquals(1, admission.getTimedOut());
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionControl(0, 1000, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionControl(1000, 10, 1000));
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionControl(100, 1000, 0));
+    }
+}
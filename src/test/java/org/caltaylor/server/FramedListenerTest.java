@@ -0,0 +1,142 @@
+package org.caltaylor.server;
+
+import org.caltaylor.common.DictionaryEncoding;
+import org.caltaylor.common.Frame;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** FramedListenerTest talks to a running JsonServer over the framed TCP transport with a hand written client. */
+public class FramedListenerTest {
+    private static final String SERVER_OUTPUT_DIRECTORY = "build/framedOutput";
+
+    private static void sendDocument(SocketChannel channel, long seq, String sourceFile) throws IOException {
+        String json = "{\"sourceFile\": \"" + sourceFile + "\", \"key1\": \"value" + seq + "\"}";
+        new Frame(Frame.DOCUMENT, seq, json.getBytes(StandardCharsets.UTF_8)).write(channel);
+    }
+
+    /** Reads frames until one acknowledges seq, returns the number of rejects seen on the way. */
+    private static int awaitAck(SocketChannel channel, long seq) throws IOException {
+        int rejects = 0;
+        Frame frame;
+        while ((frame = Frame.read(channel)) != null) {
+            if (frame.getType() == Frame.REJECT) {
+                rejects++;
+            } else if (frame.getType() == Frame.ACK && frame.getSeq() >= seq) {
+                return rejects;
+            }
+        }
+        throw new IOException("Connection closed before " + seq + " was acked");
+    }
+
+    @Test
+    public void testPipelinedDocumentsAreWrittenAndAcked() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(SERVER_OUTPUT_DIRECTORY).writerLanes(4).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getFramedPort()))) {
+            // a client that reconnected carries on from where its numbering was
+            for (long seq = 101; seq <= 200; seq++) {
+                sendDocument(channel, seq, "framed" + seq + ".properties");
+            }
+            assertEquals(0, awaitAck(channel, 200));
+            for (long seq = 101; seq <= 200; seq++) {
+                File written = new File(SERVER_OUTPUT_DIRECTORY + "/framed" + seq + ".properties");
+                assertEquals(1, Files.readAllLines(written.toPath()).size());
+            }
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testOversizedDocumentIsRefusedAndStreamCarriesOn() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(SERVER_OUTPUT_DIRECTORY).maxBodyBytes(200).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getFramedPort()))) {
+            new Frame(Frame.DOCUMENT, 1, new byte[50_000]).write(channel);
+            sendDocument(channel, 2, "afterOversized.properties");
+
+            Frame refused = Frame.read(channel);
+            assertEquals(Frame.TOO_LARGE, refused.getType());
+            assertEquals(1, refused.getSeq());
+            assertEquals(0, awaitAck(channel, 2));
+            assertTrue(new File(SERVER_OUTPUT_DIRECTORY + "/afterOversized.properties").exists());
+            assertEquals(0, server.getAdmission().getInFlightBytes());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testDrainFinishesAckingInFlightDocuments() throws Exception {
+        // the coalesce window holds every write for a while, so the documents are still in flight when we drain
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(SERVER_OUTPUT_DIRECTORY).coalesceWindowMillis(500).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getFramedPort()))) {
+            for (long seq = 1; seq <= 10; seq++) {
+                sendDocument(channel, seq, "draining" + seq + ".properties");
+            }
+            Thread.sleep(200);
+            assertTrue(server.drain(Duration.ofSeconds(10)));
+            assertEquals(0, awaitAck(channel, 10));
+            assertTrue(new File(SERVER_OUTPUT_DIRECTORY + "/draining10.properties").exists());
+        }
+    }
+
+    @Test
+    public void testDictionaryEncodedDocumentsAreWritten() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(SERVER_OUTPUT_DIRECTORY).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        DictionaryEncoding.Encoder encoder = new DictionaryEncoding.Encoder();
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getFramedPort()))) {
+            for (long seq = 1; seq <= 5; seq++) {
+                Map<String, String> document = new LinkedHashMap<>();
+                document.put("sourceFile", "encoded" + seq + ".properties");
+                document.put("key1", "first" + seq);
+                document.put("key" + (seq + 1), "second" + seq);
+                DictionaryEncoding.Encoded encoded = encoder.encode(document);
+                new Frame(Frame.DEFINE_KEYS, 0, encoded.getDefinitions()).write(channel);
+                new Frame(Frame.ENCODED_DOCUMENT, seq, encoded.getDocument()).write(channel);
+            }
+            assertEquals(0, awaitAck(channel, 5));
+            List<String> lines = Files.readAllLines(new File(SERVER_OUTPUT_DIRECTORY + "/encoded5.properties").toPath());
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0).endsWith("first5"));
+            assertTrue(lines.get(1).endsWith("second5"));
+            assertEquals(6, server.getKeys().size());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testUndefinedKeyIdClosesConnection() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).framedPort(0).outputPath(SERVER_OUTPUT_DIRECTORY).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getFramedPort()))) {
+            Map<String, String> document = new LinkedHashMap<>();
+            document.put("sourceFile", "undefined.properties");
+            document.put("key1", "value1");
+            // the definitions frame is left out, so the server can't know what id 0 is
+            new Frame(Frame.ENCODED_DOCUMENT, 1, new DictionaryEncoding.Encoder().encode(document).getDocument()).write(channel);
+            assertNull(Frame.read(channel));
+            assertEquals(0, server.getAdmission().getInFlightBytes());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+}
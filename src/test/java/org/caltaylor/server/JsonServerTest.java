@@ -1,6 +1,7 @@
 package org.caltaylor.server;
 
 import com.sun.net.httpserver.HttpExchange;
+import org.caltaylor.common.DocumentDelta;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterAll;
@@ -8,8 +9,23 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.HttpURLConnection;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
@@ -29,12 +45,10 @@ public class JsonServerTest {
             System.err.println("Couldn't delete temp config file");
         }
         JsonServer.stopServer();
-        Thread.sleep(5000);
     }
     @AfterAll
     public static void afterAll() throws Exception {
         JsonServer.stopServer();
-        Thread.sleep(5000);
     }
 
     @Test
@@ -42,7 +56,6 @@ public class JsonServerTest {
 
         Exception exception = assertThrows(NullPointerException.class, () -> {
             JsonServer.main(null); // Provide a config file path for testing
-            common();
         });
 
         String expectedMessage = "Parameter to JsonServer must be a directory that can be created.";
@@ -56,7 +69,6 @@ public class JsonServerTest {
             String configDir = "";  //tests current dir
             generateServerConfigFileInDir(configDir, TEST_PORT, SERVER_OUTPUT_DIRECTORY);
             JsonServer.main(new String[]{configDir});
-            common();
         });
 
         String expectedMessage = "Parameter to JsonServer must be a directory that can be created.";
@@ -69,8 +81,12 @@ public class JsonServerTest {
     public void testWithDotConfigDirParam() throws Exception {
         String configDir = ".";  //tests current dir
         generateServerConfigFileInDir(configDir, TEST_PORT, SERVER_OUTPUT_DIRECTORY);
-        JsonServer.main(new String[]{configDir});
-        common();
+        JsonServer server = JsonServer.fromConfigDir(configDir).start().get(10, TimeUnit.SECONDS);
+        try {
+            common(server);
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
      }
 
     @Test
@@ -78,10 +94,227 @@ public class JsonServerTest {
         String configDir = "build";
         generateServerConfigFileInDir(configDir, TEST_PORT, SERVER_OUTPUT_DIRECTORY);
         JsonServer.main(new String[]{configDir}); // Provide a config file path for testing
-        common();
+        // main only returns once the server is bound
+        assertEquals(200, post(Integer.parseInt(TEST_PORT), "{\"sourceFile\": \"main.properties\", \"key1\": \"important data\"}"));
+        assertTrue(new File(SERVER_OUTPUT_DIRECTORY + "/main.properties").exists());
+    }
+
+    @Test
+    public void testSeveralInstancesInOneJvm() throws Exception {
+        JsonServer first = JsonServer.builder().port(0).outputPath("build/serverOutput1").build();
+        JsonServer second = JsonServer.builder().port(0).outputPath("build/serverOutput2").build();
+        CompletableFuture.allOf(first.start(), second.start()).get(10, TimeUnit.SECONDS);
+        assertNotEquals(first.getPort(), second.getPort());
+
+        assertEquals(200, post(first.getPort(), "{\"sourceFile\": \"first.properties\", \"key1\": \"one\"}"));
+        assertEquals(200, post(second.getPort(), "{\"sourceFile\": \"second.properties\", \"key1\": \"two\"}"));
+
+        assertTrue(new File("build/serverOutput1/first.properties").exists());
+        assertTrue(new File("build/serverOutput2/second.properties").exists());
+        assertTrue(first.drain(Duration.ofSeconds(10)));
+        assertTrue(second.drain(Duration.ofSeconds(10)));
+    }
+
+    @Test
+    public void testStartFailsWhenPortInUse() throws Exception {
+        JsonServer first = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).build();
+        first.start().get(10, TimeUnit.SECONDS);
+        JsonServer second = JsonServer.builder().port(first.getPort()).outputPath(SERVER_OUTPUT_DIRECTORY).build();
+        CompletableFuture<JsonServer> secondStarted = second.start();
+        Exception exception = assertThrows(Exception.class, () -> secondStarted.get(10, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof IOException);
+        first.drain(Duration.ofSeconds(10));
+    }
+
+    @Test
+    public void testDrainFinishesInFlightUploads() throws Exception {
+        // the coalesce window holds every write for a while, so the upload is still in flight when we drain
+        JsonServer server = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).coalesceWindowMillis(500).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        int port = server.getPort();
+        File output = new File(SERVER_OUTPUT_DIRECTORY + "/drain.properties");
+        Files.deleteIfExists(output.toPath());
+
+        CompletableFuture<Integer> upload = CompletableFuture.supplyAsync(() -> {
+            try {
+                return post(port, "{\"sourceFile\": \"drain.properties\", \"key1\": \"important data\"}");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        Thread.sleep(200);
+
+        assertTrue(server.drain(Duration.ofSeconds(10)));
+        assertEquals(200, (int) upload.get(10, TimeUnit.SECONDS));
+        assertTrue(output.exists());
+        assertThrows(ConnectException.class, () -> post(port, "{\"sourceFile\": \"late.properties\"}"));
+    }
+
+    @Test
+    public void testConfigFileChangeIsAppliedWhileRunning() throws Exception {
+        String configDir = "build/reloadConfig";
+        generateServerConfigFileInDir(configDir, "0", "build/reloadOutput1");
+        JsonServer server = JsonServer.fromConfigDir(configDir).start().get(10, TimeUnit.SECONDS);
+        try {
+            assertEquals(10, server.getThreads());
+
+            // the port is unchanged, 0 still means the one we got
+            PrintWriter writer = new PrintWriter(configDir + File.separator + CONFIG_FILE_NAME, StandardCharsets.UTF_8);
+            writer.println("port 0");
+            writer.println("outputPath build/reloadOutput2");
+            writer.println("threads 3");
+            writer.close();
+
+            for (int i = 0; i < 100 && !server.getOutputPath().equals("build/reloadOutput2"); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals("build/reloadOutput2", server.getOutputPath());
+            assertEquals(3, server.getThreads());
+
+            assertEquals(200, post(server.getPort(), "{\"sourceFile\": \"reloaded.properties\", \"key1\": \"important data\"}"));
+            assertTrue(new File("build/reloadOutput2/reloaded.properties").exists());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testReconfigureRejectsInvalidValues() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).threads(2).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try {
+            Properties prop = new Properties();
+            prop.setProperty("port", "0");
+            prop.setProperty("outputPath", "build/shouldNotBeUsed");
+            prop.setProperty("threads", "0");
+            assertThrows(IllegalArgumentException.class, () -> server.reconfigure(prop));
+            assertEquals(2, server.getThreads());
+            assertEquals(SERVER_OUTPUT_DIRECTORY, server.getOutputPath());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testOversizedAndSlowUploadsAreRefused() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).maxBodyBytes(100).readTimeoutMillis(300).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try {
+            assertEquals(413, post(server.getPort(), "{\"sourceFile\": \"big.properties\", \"key1\": \"" + "x".repeat(200) + "\"}"));
+            assertEquals(200, post(server.getPort(), "{\"sourceFile\": \"small.properties\", \"key1\": \"x\"}"));
+
+            // a body trickling in a byte at a time is cut off once the read timeout passes
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /json HTTP/1.1\r\nHost: localhost\r\nContent-Length: 50\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                socket.setSoTimeout(100);
+                String statusLine = null;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                for (int i = 0; i < 50 && statusLine == null; i++) {
+                    out.write('{');
+                    out.flush();
+                    try {
+                        statusLine = in.readLine();
+                    } catch (SocketTimeoutException e) {
+                        // nothing yet, keep trickling
+                    }
+                }
+                assertTrue(statusLine != null && statusLine.startsWith("HTTP/1.1 408"), "Expected 408, got " + statusLine);
+            }
+            assertEquals(0, server.getAdmission().getInFlightBytes());
+            assertEquals(1, server.getAdmission().getTooLarge());
+            assertEquals(1, server.getAdmission().getTimedOut());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testStalledUploadIsCutOff() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).readTimeoutMillis(200).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            // a few bytes of the body and then nothing, so there is no next byte to notice the timeout on
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /json HTTP/1.1\r\nHost: localhost\r\nContent-Length: 50\r\n\r\n{\"sou").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.setSoTimeout(10_000);
+            long start = System.nanoTime();
+            int read;
+            try {
+                read = socket.getInputStream().read();
+            } catch (SocketException e) {
+                read = -1;
+            }
+            assertEquals(-1, read);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "Connection was not closed in time");
+            for (int i = 0; i < 50 && server.getAdmission().getInFlightBytes() > 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, server.getAdmission().getInFlightBytes());
+            assertEquals(1, server.getAdmission().getTimedOut());
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    public void testDeltaUploadIsCheckedAgainstStoredVersion() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(SERVER_OUTPUT_DIRECTORY).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try {
+            assertEquals(200, post(server.getPort(), "{\"sourceFile\": \"patched.properties\", \"key1\": \"one\", \"key2\": \"two\"}"));
+            long base = DocumentDelta.version(Map.of("key1", "one", "key2", "two"));
+            long patched = DocumentDelta.version(Map.of("key1", "uno", "key3", "three"));
+            String delta = "{\"sourceFile\": \"patched.properties\", \"changed\": {\"key1\": \"uno\", \"key3\": \"three\"}, \"removed\": [\"key2\"]}";
+
+            assertEquals(409, postDelta(server.getPort(), delta, DocumentDelta.toHeader(base + 1), DocumentDelta.toHeader(patched)));
+            assertEquals(409, postDelta(server.getPort(), delta, DocumentDelta.toHeader(base), DocumentDelta.toHeader(patched + 1)));
+            assertEquals(409, postDelta(server.getPort(), delta.replace("patched.properties", "unknown.properties"),
+                    DocumentDelta.toHeader(base), DocumentDelta.toHeader(patched)));
+            assertEquals(400, postDelta(server.getPort(), delta, DocumentDelta.toHeader(base), null));
+            assertEquals(400, postDelta(server.getPort(), "{\"sourceFile\": \"patched.properties\"}", DocumentDelta.toHeader(base), DocumentDelta.toHeader(patched)));
+            // nothing refused was written
+            assertEquals(List.of("key1 = one", "key2 = two"), Files.readAllLines(new File(SERVER_OUTPUT_DIRECTORY, "patched.properties").toPath()));
+
+            assertEquals(200, postDelta(server.getPort(), delta, DocumentDelta.toHeader(base), DocumentDelta.toHeader(patched)));
+            assertEquals(List.of("key1 = uno", "key3 = three"), Files.readAllLines(new File(SERVER_OUTPUT_DIRECTORY, "patched.properties").toPath()));
+        } finally {
+            server.drain(Duration.ofSeconds(10));
+        }
+    }
+
+    static int postDelta(int port, String json, String base, String version) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create("http://localhost:" + port + "/json").toURL().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty(DocumentDelta.BASE_HEADER, base);
+        if (version != null) {
+            connection.setRequestProperty(DocumentDelta.VERSION_HEADER, version);
+        }
+        connection.setDoOutput(true);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        int responseCode = connection.getResponseCode();
+        connection.disconnect();
+        return responseCode;
+    }
+
+    static int post(int port, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create("http://localhost:" + port + "/json").toURL().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        int responseCode = connection.getResponseCode();
+        connection.disconnect();
+        return responseCode;
     }
 
-    void common() throws IOException {
+    void common(JsonServer server) throws IOException {
         HttpExchange exchange = Mockito.mock(HttpExchange.class);
 
         // Prepare input and output streams
@@ -93,7 +326,7 @@ public class JsonServerTest {
         when(exchange.getResponseBody()).thenReturn(outputStream);
 
         // Create JsonServer instance and call handle method
-        JsonServer.JsonHandler handler = new JsonServer.JsonHandler();
+        JsonServer.JsonHandler handler = new JsonServer.JsonHandler(server);
         handler.handle(exchange);
 
         // Verify the response sent back
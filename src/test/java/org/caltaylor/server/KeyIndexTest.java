@@ -0,0 +1,236 @@
+package org.caltaylor.server;
+
+import org.caltaylor.common.SymbolTable;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** KeyIndexTest checks that the index follows files as they are written again, that a restart gets back to the
+ * same index from a snapshot plus the files written since or from the output files alone, that any key and value
+ * survives the output file format, and the http lookups.
+ * */
+public class KeyIndexTest {
+    private static final Path outputDir = Path.of("/tmp/keyIndex");
+
+    @BeforeEach
+    public void clean() throws IOException {
+        if (Files.exists(outputDir)) {
+            try (Stream<Path> paths = Files.walk(outputDir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.createDirectories(outputDir);
+    }
+
+    private static OutputCompactor compactor() {
+        return new OutputCompactor(outputDir::toString, new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+        }), 0, 1, 1);
+    }
+
+    private static void writeOutput(String sourceFile, String contents, long modifiedMillis) throws IOException {
+        Path file = outputDir.resolve(sourceFile);
+        Files.writeString(file, contents);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modifiedMillis));
+    }
+
+    @Test
+    public void testRewrittenFileMovesToItsNewPostings() {
+        KeyIndex index = new KeyIndex(new SymbolTable(), 0);
+        index.update("a.properties", null, Map.of("host", "alpha", "port", "80"));
+        index.update("b.properties", null, Map.of("host", "beta", "port", "80"));
+
+        assertEquals(Set.of("a.properties", "b.properties"), index.find("port", "80"));
+        assertEquals(Set.of("alpha", "beta"), index.findKey("host").keySet());
+
+        index.update("a.properties", Map.of("host", "alpha", "port", "80"), Map.of("host", "beta", "user", "80"));
+
+        assertEquals(Set.of("b.properties"), index.find("port", "80"));
+        assertEquals(Set.of("a.properties", "b.properties"), index.find("host", "beta"));
+        assertTrue(index.find("host", "alpha").isEmpty());
+        assertEquals(Set.of("beta"), index.findKey("host").keySet());
+        assertEquals(Set.of("port", "user"), index.findValue("80", 10).keySet());
+        assertEquals(Set.of("a.properties"), index.findValue("80", 10).get("user"));
+        // the walk stops at the first key past the limit
+        assertEquals(Set.of("port"), index.findValue("80", 0).keySet());
+        assertTrue(index.findKey("missing").isEmpty());
+        assertEquals(2, index.getDocumentCount());
+        assertEquals(3, index.getKeyCount());
+    }
+
+    @Test
+    public void testRestartLoadsSnapshotAndFilesWrittenSince() throws IOException {
+        long hourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        KeyIndex index = new KeyIndex(new SymbolTable(), 0);
+        writeOutput("old.properties", "key1 = old\n", hourAgo);
+        index.update("old.properties", null, Map.of("key1", "old"));
+        // only in the snapshot, as if its output file had been archived
+        index.update("gone.properties", null, Map.of("key1", "gone"));
+        index.snapshot(outputDir);
+        writeOutput("new.properties", "key1 = new\nkey2 = x \\= y\n", System.currentTimeMillis());
+        // stale in the snapshot, the index must pick up what is on disk now
+        writeOutput("old.properties", "key1 = rewritten\n", System.currentTimeMillis());
+
+        KeyIndex restarted = new KeyIndex(new SymbolTable(), 0);
+        restarted.load(outputDir, compactor());
+
+        assertEquals(3, restarted.getDocumentCount());
+        assertEquals(Set.of("gone", "new", "rewritten"), restarted.findKey("key1").keySet());
+        assertEquals(Set.of("new.properties"), restarted.find("key2", "x = y"));
+        assertEquals(Set.of("old.properties"), restarted.find("key1", "rewritten"));
+    }
+
+    @Test
+    public void testAnyKeyAndValueSurviveTheOutputFormat() {
+        Map<String, String> document = new LinkedHashMap<>();
+        document.put("plain", "value");
+        document.put("a = b", "x = y");
+        document.put(" spaced key ", "  leading and trailing  ");
+        document.put("#comment", "!bang");
+        document.put("multi\nline", "first\r\nsecond\tthird\f");
+        document.put("back\\slash", "C:\\dir\\u0041");
+        document.put("", "");
+        document.put("unicode", "caf\u00e9 \ud83d\ude00");
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<String, String> entry : document.entrySet()) {
+            contents.append(KeyIndex.line(entry.getKey(), entry.getValue())).append('\n');
+        }
+        assertEquals("plain = value\n", KeyIndex.line("plain", "value") + "\n");
+
+        Map<String, String> parsed = KeyIndex.parse(contents.toString().getBytes(StandardCharsets.UTF_8), new SymbolTable());
+
+        assertEquals(List.copyOf(document.entrySet()), List.copyOf(parsed.entrySet()));
+    }
+
+    @Test
+    public void testRestartWithoutSnapshotReadsEveryOutputFile() throws Exception {
+        long hourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        writeOutput("archived.properties", "key1 = archived\n", hourAgo);
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+        }), 60_000, Long.MAX_VALUE / 2, 60_000);
+        compactor.compactOnce();
+        for (int i = 0; i < 50 && Files.exists(outputDir.resolve("archived.properties")); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(outputDir.resolve("archived.properties")));
+        writeOutput("loose.properties", "key1 = loose\n", hourAgo);
+        // a corrupt snapshot counts as none
+        Files.createDirectories(outputDir.resolve(KeyIndex.INDEX_DIR_NAME));
+        Files.writeString(outputDir.resolve(KeyIndex.INDEX_DIR_NAME).resolve(KeyIndex.SNAPSHOT_FILE_NAME), "not a snapshot");
+
+        KeyIndex index = new KeyIndex(new SymbolTable(), 0);
+        index.load(outputDir, compactor);
+
+        assertEquals(Set.of("archived", "loose"), index.findKey("key1").keySet());
+    }
+
+    @Test
+    public void testUnreadableOutputFileIsSkipped() throws Exception {
+        long hourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        writeOutput("archived.properties", "key1 = archived\n", hourAgo);
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+        }), 60_000, Long.MAX_VALUE / 2, 60_000);
+        compactor.compactOnce();
+        for (int i = 0; i < 50 && Files.exists(outputDir.resolve("archived.properties")); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(outputDir.resolve("archived.properties")));
+        // garble the bundle so the archived file can't be read back
+        try (Stream<Path> bundles = Files.list(outputDir.resolve(OutputCompactor.ARCHIVE_DIR_NAME))) {
+            for (Path bundle : bundles.filter(path -> path.toString().endsWith(".gz")).toList()) {
+                Files.write(bundle, new byte[(int) Files.size(bundle)]);
+            }
+        }
+        writeOutput("loose.properties", "key1 = loose\n", hourAgo);
+
+        KeyIndex index = new KeyIndex(new SymbolTable(), 0);
+        index.load(outputDir, compactor);
+
+        assertEquals(Set.of("loose"), index.findKey("key1").keySet());
+    }
+
+    @Test
+    public void testServerIndexesWritesAndAnswersLookups() throws Exception {
+        JsonServer server = JsonServer.builder().port(0).outputPath(outputDir.toString()).keyIndex(true).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try {
+            for (int i = 0; i < 5; i++) {
+                server.submitDocument("f" + i + ".properties", Map.of("env", i < 3 ? "prod" : "test", "id", String.valueOf(i)), null, 0)
+                        .get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(List.of("env = prod", "id = 0"), Files.readAllLines(outputDir.resolve("f0.properties")).stream().sorted().toList());
+
+            JSONObject pair = get(server, "/index?key=env&value=prod");
+            assertEquals(List.of("f0.properties", "f1.properties", "f2.properties"), pair.getJSONArray("sourceFiles").toList());
+            assertFalse(pair.getBoolean("truncated"));
+
+            JSONObject byKey = get(server, "/index?key=env&limit=4");
+            assertEquals(3, byKey.getJSONObject("values").getJSONArray("prod").length());
+            assertEquals(1, byKey.getJSONObject("values").getJSONArray("test").length());
+            assertTrue(byKey.getBoolean("truncated"));
+
+            JSONObject byValue = get(server, "/index?value=" + URLEncoder.encode("3", StandardCharsets.UTF_8));
+            assertEquals(List.of("f3.properties"), byValue.getJSONObject("keys").getJSONArray("id").toList());
+
+            assertEquals(400, responseCode(server, "/index"));
+            assertEquals(400, responseCode(server, "/index?key=env&limit=0"));
+
+            // the index holds no documents, the old postings of a rewritten file are found from what is on disk
+            server.submitDocument("f0.properties", Map.of("env", "test", "id", "0"), null, 0).get(5, TimeUnit.SECONDS);
+            assertEquals(Set.of("f1.properties", "f2.properties"), server.getKeyIndex().find("env", "prod"));
+            assertEquals(Set.of("f0.properties", "f3.properties", "f4.properties"), server.getKeyIndex().find("env", "test"));
+        } finally {
+            server.drain(Duration.ofSeconds(5));
+        }
+        // drain leaves a snapshot, so the next start reads no output files
+        assertTrue(Files.exists(outputDir.resolve(KeyIndex.INDEX_DIR_NAME).resolve(KeyIndex.SNAPSHOT_FILE_NAME)));
+        JsonServer restarted = JsonServer.builder().port(0).outputPath(outputDir.toString()).keyIndex(true).build();
+        restarted.start().get(10, TimeUnit.SECONDS);
+        try {
+            assertEquals(5, restarted.getKeyIndex().getDocumentCount());
+            assertEquals(Set.of("f0.properties", "f3.properties", "f4.properties"), restarted.getKeyIndex().find("env", "test"));
+        } finally {
+            restarted.drain(Duration.ofSeconds(5));
+        }
+    }
+
+    private static JSONObject get(JsonServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream body = connection.getInputStream()) {
+            return new JSONObject(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int responseCode(JsonServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.caltaylor.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** OutputCompactorTest checks that old output is moved into bundles and can still be read back,
+ * that a file rewritten after being archived is neither lost nor shadowed by its archived copy,
+ * that a rewrite keeping the modification time and size is not lost, that superseded bundles are reclaimed,
+ * that an unfinished bundle is cleaned up only by the compactor and that archiving keeps to its byte rate.
+ * */
+public class OutputCompactorTest {
+    private static final Path outputDir = Path.of("/tmp/outputCompactor");
+    private static final long hourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+    @BeforeEach
+    public void clean() throws IOException {
+        if (Files.exists(outputDir)) {
+            try (Stream<Path> paths = Files.walk(outputDir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.createDirectories(outputDir);
+    }
+
+    private static Path writeOld(String name, String contents) throws IOException {
+        Path file = outputDir.resolve(name);
+        Files.writeString(file, contents, StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(hourAgo));
+        return file;
+    }
+
+    private static WriterLanes lanes() {
+        return new WriterLanes(2, 0, (sourceFile, document, correlationId) -> {
+            throw new IOException("Not expected to write");
+        });
+    }
+
+    @Test
+    public void testOldFilesAreArchivedRemovedAndStillReadable() throws Exception {
+        WriterLanes lanes = lanes();
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes, 60_000, Long.MAX_VALUE / 2, 60_000);
+        for (int i = 0; i < 300; i++) {
+            // varied contents, so the files spread over several compressed blocks
+            writeOld("old" + i + ".properties", ("key = value" + i + "\n").repeat(i * 3 + 1));
+        }
+        Files.writeString(outputDir.resolve("recent.properties"), "key = recent\n");
+
+        compactor.compactOnce();
+        assertTrue(lanes.drain(5000));
+
+        assertEquals(300, compactor.getArchivedFiles());
+        try (Stream<Path> loose = Files.list(outputDir)) {
+            assertEquals(2, loose.count(), "Only the recent file and the archive directory should be left");
+        }
+        for (int i = 0; i < 300; i++) {
+            assertEquals(("key = value" + i + "\n").repeat(i * 3 + 1),
+                    new String(compactor.read("old" + i + ".properties"), StandardCharsets.UTF_8));
+        }
+        assertEquals("key = recent\n", new String(compactor.read("recent.properties"), StandardCharsets.UTF_8));
+        assertNull(compactor.read("missing.properties"));
+        assertNull(compactor.read("../outputCompactor/old1.properties"));
+        assertNull(compactor.read(".archive"));
+
+        // a fresh compactor, as after a restart, finds the same files through the index on disk
+        OutputCompactor restarted = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        assertEquals("key = value7\n".repeat(22), new String(restarted.read("old7.properties"), StandardCharsets.UTF_8));
+        assertEquals(300, restarted.getIndexedFiles());
+    }
+
+    @Test
+    public void testFileRewrittenAfterArchivingIsKeptAndWins() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        writeOld("a.properties", "key = first\n");
+        compactor.compactOnce();
+        assertFalse(waitForLoose("a.properties", false));
+        assertEquals("key = first\n", new String(compactor.read("a.properties"), StandardCharsets.UTF_8));
+
+        // rewritten by a later upload, the loose file is newer than the archived one
+        Files.writeString(outputDir.resolve("a.properties"), "key = second\n");
+        assertEquals("key = second\n", new String(compactor.read("a.properties"), StandardCharsets.UTF_8));
+
+        // once it ages too it goes into a newer bundle, which wins over the first even after a restart
+        Files.setLastModifiedTime(outputDir.resolve("a.properties"), FileTime.fromMillis(hourAgo));
+        compactor.compactOnce();
+        assertFalse(waitForLoose("a.properties", false));
+        OutputCompactor restarted = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        assertEquals("key = second\n", new String(restarted.read("a.properties"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFileChangedBeforeItsDeleteIsNotRemoved() throws Exception {
+        Path file = writeOld("busy.properties", "key = old\n");
+        // the lane is busy with another upload of the same file while it is archived
+        CountDownLatch release = new CountDownLatch(1);
+        WriterLanes lanes = new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Files.writeString(file, "key = new\n");
+        });
+        lanes.submit("busy.properties", Map.of("key", "new"), null);
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes, 60_000, Long.MAX_VALUE / 2, 60_000);
+        compactor.compactOnce();
+        release.countDown();
+        assertTrue(lanes.drain(5000));
+
+        assertTrue(Files.exists(file));
+        assertEquals("key = new\n", new String(compactor.read("busy.properties"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFileRewrittenWithSameTimeAndSizeIsNotRemoved() throws Exception {
+        Path file = writeOld("same.properties", "key = old\n");
+        CountDownLatch release = new CountDownLatch(1);
+        WriterLanes lanes = new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // as long as the archived contents and within the same timestamp
+            Files.writeString(file, "key = new\n");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(hourAgo));
+        });
+        lanes.submit("same.properties", Map.of("key", "new"), null);
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes, 60_000, Long.MAX_VALUE / 2, 60_000);
+        compactor.compactOnce();
+        release.countDown();
+        assertTrue(lanes.drain(5000));
+
+        assertTrue(Files.exists(file));
+        assertEquals("key = new\n", new String(compactor.read("same.properties"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSupersededBundlesAreReclaimed() throws Exception {
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        for (int i = 0; i < 4; i++) {
+            writeOld("f" + i + ".properties", "key = first" + i + "\n");
+        }
+        compactor.compactOnce();
+        for (int i = 0; i < 4; i++) {
+            assertFalse(waitForLoose("f" + i + ".properties", false));
+        }
+
+        // three of the four are archived again, so bundle 1 is left with one current file and rewritten with just it
+        for (int i = 0; i < 3; i++) {
+            writeOld("f" + i + ".properties", "key = second" + i + "\n");
+        }
+        compactor.compactOnce();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(waitForLoose("f" + i + ".properties", false));
+        }
+        Path archive = outputDir.resolve(OutputCompactor.ARCHIVE_DIR_NAME);
+        assertEquals(List.of("bundle-2.gz", "bundle-2.idx", "bundle-3.gz", "bundle-3.idx"), archiveFiles());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("key = second" + i + "\n", new String(compactor.read("f" + i + ".properties"), StandardCharsets.UTF_8));
+        }
+        assertEquals("key = first3\n", new String(compactor.read("f3.properties"), StandardCharsets.UTF_8));
+        assertEquals(1, Files.readAllLines(archive.resolve("bundle-3.idx")).size());
+
+        // the last one is archived again too, leaving bundle 3 without a current file
+        writeOld("f3.properties", "key = second3\n");
+        compactor.compactOnce();
+        assertFalse(waitForLoose("f3.properties", false));
+        assertEquals(List.of("bundle-2.gz", "bundle-2.idx", "bundle-4.gz", "bundle-4.idx"), archiveFiles());
+
+        OutputCompactor restarted = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        for (int i = 0; i < 4; i++) {
+            assertEquals("key = second" + i + "\n", new String(restarted.read("f" + i + ".properties"), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testUnfinishedBundleIsRemovedByTheCompactorOnly() throws Exception {
+        Path archive = Files.createDirectories(outputDir.resolve(OutputCompactor.ARCHIVE_DIR_NAME));
+        Files.write(archive.resolve("bundle-1.gz"), new byte[]{1, 2, 3});
+        Files.write(archive.resolve("bundle-2.gz.tmp"), new byte[]{1, 2, 3});
+        writeOld("b.properties", "key = b\n");
+
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes(), 60_000, Long.MAX_VALUE / 2, 60_000);
+        // a read loads the index, it must not take a bundle that may still be being written
+        assertNull(compactor.read("missing.properties"));
+        assertTrue(Files.exists(archive.resolve("bundle-1.gz")));
+        assertTrue(Files.exists(archive.resolve("bundle-2.gz.tmp")));
+
+        compactor.compactOnce();
+
+        assertFalse(Files.exists(archive.resolve("bundle-1.gz")));
+        assertFalse(Files.exists(archive.resolve("bundle-2.gz.tmp")));
+        assertTrue(Files.exists(archive.resolve("bundle-2.gz")));
+        assertTrue(Files.exists(archive.resolve("bundle-2.idx")));
+        assertEquals("key = b\n", new String(compactor.read("b.properties"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testArchivingKeepsToItsByteRate() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            writeOld("rate" + i + ".properties", "x".repeat(10_000));
+        }
+        // 100 KB read at 200 KB/s, plus the little the compressed blocks add, takes at least half a second
+        OutputCompactor compactor = new OutputCompactor(outputDir::toString, lanes(), 60_000, 200_000, 60_000);
+        long start = System.nanoTime();
+        compactor.compactOnce();
+        long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(tookMillis >= 450, "Archiving 100KB at 200KB/s took only " + tookMillis + "ms");
+        assertEquals(10, compactor.getArchivedFiles());
+    }
+
+    @Test
+    public void testArchivedOutputIsServedOverHttp() throws Exception {
+        File serverOutput = outputDir.resolve("server").toFile();
+        JsonServer server = JsonServer.builder().port(0).outputPath(serverOutput.getPath()).archiveAfterMillis(60_000).build();
+        server.start().get(10, TimeUnit.SECONDS);
+        try {
+            server.submitDocument("served.properties", Map.of("key", "served"), null, 0).get(5, TimeUnit.SECONDS);
+            byte[] written = Files.readAllBytes(serverOutput.toPath().resolve("served.properties"));
+            Files.setLastModifiedTime(serverOutput.toPath().resolve("served.properties"), FileTime.fromMillis(hourAgo));
+            server.getCompactor().compactOnce();
+            assertTrue(waitForGone(serverOutput.toPath().resolve("served.properties")));
+
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/output/served.properties").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream body = connection.getInputStream()) {
+                assertArrayEquals(written, body.readAllBytes());
+            }
+            assertEquals(404, responseCode(server, "GET", "/output/missing.properties"));
+            assertEquals(404, responseCode(server, "GET", "/output/.archive"));
+            assertEquals(405, responseCode(server, "POST", "/output/served.properties"));
+        } finally {
+            server.drain(Duration.ofSeconds(5));
+        }
+    }
+
+    private static int responseCode(JsonServer server, String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static List<String> archiveFiles() throws IOException {
+        try (Stream<Path> files = Files.list(outputDir.resolve(OutputCompactor.ARCHIVE_DIR_NAME))) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    private static boolean waitForLoose(String name, boolean expected) throws InterruptedException {
+        Path file = outputDir.resolve(name);
+        for (int i = 0; i < 50 && Files.exists(file) != expected; i++) {
+            Thread.sleep(20);
+        }
+        return Files.exists(file);
+    }
+
+    private static boolean waitForGone(Path file) throws InterruptedException {
+        for (int i = 0; i < 50 && Files.exists(file); i++) {
+            Thread.sleep(20);
+        }
+        return !Files.exists(file);
+    }
+}
@@ -0,0 +1,218 @@
+package org.caltaylor.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** WriterLanesTest checks that writes for one sourceFile are serialized in order on a single lane,
+ * that bursts of updates to the same file collapse into fewer writes, and that errors reach the caller.
+ * */
+public class WriterLanesTest {
+
+    @Test
+    public void testLatestVersionWinsAndWritesNeverOverlap() throws Exception {
+        Map<String, String> lastWritten = new ConcurrentHashMap<>();
+        AtomicInteger concurrentWriters = new AtomicInteger();
+        AtomicInteger maxConcurrentWriters = new AtomicInteger();
+        WriterLanes lanes = new WriterLanes(4, 0, (sourceFile, document, correlationId) -> {
+            int writers = concurrentWriters.incrementAndGet();
+            maxConcurrentWriters.accumulateAndGet(writers, Math::max);
+            lastWritten.put(sourceFile, document.get("version"));
+            concurrentWriters.decrementAndGet();
+        });
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(lanes.submit("hot.properties", Map.of("version", String.valueOf(i)), null));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals("199", lastWritten.get("hot.properties"));
+        assertEquals(1, maxConcurrentWriters.get());
+        assertEquals(200, lanes.getSubmitted());
+        assertEquals(200, lanes.getWritten() + lanes.getCoalesced());
+        assertTrue(lanes.drain(5000));
+    }
+
+    @Test
+    public void testBurstCollapsesIntoSingleWriteWithinWindow() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        Map<String, String> lastWritten = new ConcurrentHashMap<>();
+        CountDownLatch blocking = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        WriterLanes lanes = new WriterLanes(1, 200, (sourceFile, document, correlationId) -> {
+            if (sourceFile.equals("blocker.properties")) {
+                blocking.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            writes.incrementAndGet();
+            lastWritten.put(sourceFile, document.get("version"));
+        });
+
+        // hold the only lane in another file's write so the whole burst is queued before the lane gets to it, however slow the machine
+        CompletableFuture<Void> blocker = lanes.submit("blocker.properties", Map.of("key1", "val1"), null);
+        assertTrue(blocking.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(lanes.submit("burst.properties", Map.of("version", String.valueOf(i)), null));
+        }
+        release.countDown();
+        blocker.get(10, TimeUnit.SECONDS);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, writes.get());
+        assertEquals(49, lanes.getCoalesced());
+        assertEquals("49", lastWritten.get("burst.properties"));
+        lanes.close();
+    }
+
+    @Test
+    public void testDifferentFilesAreWrittenInParallelLanes() throws Exception {
+        int laneCount = 4;
+        CountDownLatch allLanesBusy = new CountDownLatch(laneCount);
+        WriterLanes lanes = new WriterLanes(laneCount, 0, (sourceFile, document, correlationId) -> {
+            allLanesBusy.countDown();
+            try {
+                allLanesBusy.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // pick one file per lane so every lane has work at the same time
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        boolean[] laneUsed = new boolean[laneCount];
+        for (int i = 0; futures.size() < laneCount; i++) {
+            String sourceFile = "parallel-" + i + ".properties";
+            int lane = lanes.laneIndex(sourceFile);
+            if (!laneUsed[lane]) {
+                laneUsed[lane] = true;
+                futures.add(lanes.submit(sourceFile, Map.of("key1", "val1"), null));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(0, allLanesBusy.getCount());
+        lanes.close();
+    }
+
+    @Test
+    public void testWriteFailureIsReported() throws Exception {
+        WriterLanes lanes = new WriterLanes(1, 0, (sourceFile, document, correlationId) -> {
+            throw new IOException("disk full");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> lanes.submit("broken.properties", Map.of("key1", "val1"), null).get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        lanes.close();
+    }
+
+    @Test
+    public void testDrainWritesQueuedDocumentsAndRejectsNewOnes() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        WriterLanes lanes = new WriterLanes(2, 0, (sourceFile, document, correlationId) -> writes.incrementAndGet());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(lanes.submit("drain-" + i + ".properties", Map.of("key1", "val1"), null));
+        }
+        assertTrue(lanes.drain(5000));
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+        }
+        assertEquals(100, writes.get());
+        assertTrue(lanes.submit("late.properties", Map.of("key1", "val1"), null).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testTaskRunsOnTheLaneBetweenWritesOfItsFile() throws Exception {
+        List<String> order = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        WriterLanes lanes = new WriterLanes(4, 0, (sourceFile, document, correlationId) -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add("write " + document.get("version"));
+        });
+        CompletableFuture<Void> first = lanes.submit("shared.properties", Map.of("version", "1"), null);
+        CompletableFuture<Void> task = lanes.execute("shared.properties", () -> order.add("task"));
+        release.countDown();
+        CompletableFuture.allOf(first, task).get(10, TimeUnit.SECONDS);
+        lanes.submit("shared.properties", Map.of("version", "2"), null).get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of("write 1", "task", "write 2"), order);
+        assertTrue(lanes.drain(5000));
+        assertTrue(lanes.execute("shared.properties", () -> order.add("late")).isCompletedExceptionally());
+    }
+
+    @Test
+    public void testTaskWaitsForDocumentQueuedInTheCoalesceWindow() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        WriterLanes lanes = new WriterLanes(1, 500, (sourceFile, document, correlationId) -> order.add("write " + document.get("version")));
+
+        CompletableFuture<Void> queued = lanes.submit("window.properties", Map.of("version", "1"), null);
+        lanes.execute("window.properties", () -> order.add("task")).get(10, TimeUnit.SECONDS);
+
+        assertTrue(queued.isDone());
+        assertEquals(List.of("write 1", "task"), order);
+        lanes.close();
+    }
+
+    @Test
+    public void testSubmitsRacingDrainAllComplete() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            WriterLanes lanes = new WriterLanes(2, 0, (sourceFile, document, correlationId) -> {
+            });
+            List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(4);
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                Thread submitter = new Thread(() -> {
+                    started.countDown();
+                    for (int i = 0; i < 500; i++) {
+                        String sourceFile = "race-" + thread + "-" + (i % 10) + ".properties";
+                        futures.add(i % 2 == 0 ? lanes.submit(sourceFile, Map.of("key1", "val1"), null) : lanes.execute(sourceFile, () -> {
+                        }));
+                    }
+                });
+                submitter.start();
+                submitters.add(submitter);
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            lanes.drain(5000);
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            // written, run or failed, but never left hanging
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        }
+    }
+}